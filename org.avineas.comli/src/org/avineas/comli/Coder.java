@@ -15,16 +15,49 @@
  */
 package org.avineas.comli;
 
+import java.nio.ByteBuffer;
+
 /**
  * Coder for encoding and decoding values into an array of bytes. Useful for
- * master usage and slave implements.
+ * master usage and slave implements. The coding is done with lookup tables,
+ * directly into the arrays or buffers, without allocating objects. Block 
+ * variants code whole ranges of registers at once.
  * 
  * @author A. van Wijngaarden
  */
 public class Coder {
+    private static final byte[] HEX = { 
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+    private static final byte[] DIGITS = new byte[256];
+    private static final byte[] REVERSED = new byte[256];
+    
+    static {
+        for (int cnt = 0; cnt < 256; cnt++) {
+            DIGITS[cnt] = -1;
+            int out = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                if ((cnt & (1 << bit)) != 0) {
+                    out |= (1 << (7 - bit));
+                }
+            }
+            REVERSED[cnt] = (byte) out;
+        }
+        for (int cnt = 0; cnt < 16; cnt++) {
+            DIGITS[HEX[cnt]] = (byte) cnt;
+            DIGITS[Character.toLowerCase(HEX[cnt])] = (byte) cnt;
+        }
+    }
+    
     private Coder() {
         // Only static methods. Should not be instantiated
     }
+    
+    private static void checkFits(int value, int size) {
+        if (size < 8 && (value >>> (size * 4)) != 0)
+            throw new RuntimeException("(bugcheck): " + value + 
+                " does not fit into " + size + " bytes");
+    }
+    
     /**
      * Convert an integer value to a byte array containing the ASCII representation
      * of the integer.
@@ -34,17 +67,9 @@ public class Coder {
      * @return A byte array containing the ascii representation of the integer
      */
     public static byte[] toHexBytes(int value, int size) {
-        String bytes = Integer.toHexString(value).toUpperCase();
-        if (bytes.length() > size)
-            throw new RuntimeException("(bugcheck): " + value + 
-                " does not fit into " + size + " bytes");
-        while (bytes.length() < size)
-            bytes = "0" + bytes;
-        try {
-            return bytes.getBytes("US-ASCII");
-        } catch (Exception exc) {
-            throw new RuntimeException(exc);
-        }
+        byte[] bytes = new byte[size];
+        toHexBytes(value, size, bytes, 0);
+        return bytes;
     }
     
     /**
@@ -56,8 +81,62 @@ public class Coder {
      * @param offset The offset in the output buffer
      */
     public static void toHexBytes(int value, int size, byte[] to, int offset) {
-        byte[] hex = toHexBytes(value, size);
-        System.arraycopy(hex, 0, to, offset, size);
+        checkFits(value, size);
+        int rest = value;
+        for (int cnt = offset + size - 1; cnt >= offset; cnt--) {
+            to[cnt] = HEX[rest & 0xf];
+            rest >>>= 4;
+        }
+    }
+    
+    /**
+     * Variant to put data into a buffer, at its current position.
+     * 
+     * @param value The value to set
+     * @param size The size in which to code
+     * @param to The output buffer. Its position is advanced by the size
+     */
+    public static void toHexBytes(int value, int size, ByteBuffer to) {
+        checkFits(value, size);
+        for (int cnt = size - 1; cnt >= 0; cnt--) {
+            to.put(HEX[(value >>> (cnt * 4)) & 0xf]);
+        }
+    }
+    
+    /**
+     * Convert a block of values to their ASCII representation, each value
+     * taking the same number of bytes.
+     * 
+     * @param values The values to convert
+     * @param from The index of the first value to convert
+     * @param count The number of values to convert
+     * @param size The size in bytes of every value
+     * @param to The output buffer
+     * @param offset The offset in the output buffer
+     */
+    public static void toHexBytes(int[] values, int from, int count, int size, byte[] to, int offset) {
+        for (int cnt = 0; cnt < count; cnt++) {
+            toHexBytes(values[from + cnt], size, to, offset + cnt * size);
+        }
+    }
+    
+    private static int digit(byte data) {
+        int digit = DIGITS[data & 0xff];
+        if (digit < 0)
+            throw new NumberFormatException("invalid hex digit: " + (char) (data & 0xff));
+        return digit;
+    }
+    
+    private static void checkSize(int size) {
+        // Same limits as Integer.parseInt
+        if (size <= 0 || size > 8)
+            throw new NumberFormatException("cannot convert " + size + " hex digits");
+    }
+    
+    private static int checkValue(long value) {
+        if (value > Integer.MAX_VALUE)
+            throw new NumberFormatException("hex value " + Long.toHexString(value) + " too large");
+        return (int) value;
     }
     
     /**
@@ -68,20 +147,51 @@ public class Coder {
      * @param offset The offset in the buffer to start the coding
      * @param size The size to use
      * @return The value of the converted data
+     * @throws NumberFormatException In case the data is not a valid hex value
      */
     public static int fromHexBytes(byte[] data, int offset, int size) {
-        String strValue = new String(data, offset, size);
-        return Integer.parseInt(strValue, 16);
+        checkSize(size);
+        long value = 0;
+        for (int cnt = offset; cnt < offset + size; cnt++) {
+            value = (value << 4) | digit(data[cnt]);
+        }
+        return checkValue(value);
     }
     
-    private static int swap(int in) {
-        int out = 0;
-        for (int cnt = 0; cnt < 8; cnt++) {
-            if ((in & (1 << cnt)) != 0) {
-            out |= (1 << (7 - cnt));
-            }
+    /**
+     * Convert the hex specification at the current position of a buffer to 
+     * an integer.
+     * 
+     * @param data The buffer from which to decode. Its position is advanced by the size
+     * @param size The size to use
+     * @return The value of the converted data
+     * @throws NumberFormatException In case the data is not a valid hex value
+     */
+    public static int fromHexBytes(ByteBuffer data, int size) {
+        checkSize(size);
+        long value = 0;
+        for (int cnt = 0; cnt < size; cnt++) {
+            value = (value << 4) | digit(data.get());
+        }
+        return checkValue(value);
+    }
+    
+    /**
+     * Convert a block of hex specifications, each taking the same number 
+     * of bytes, to integers.
+     * 
+     * @param data The buffer from which to decode
+     * @param offset The offset in the buffer to start the coding
+     * @param size The size of every value
+     * @param values The output values
+     * @param from The index of the first value to set
+     * @param count The number of values to convert
+     * @throws NumberFormatException In case the data is not a valid hex value
+     */
+    public static void fromHexBytes(byte[] data, int offset, int size, int[] values, int from, int count) {
+        for (int cnt = 0; cnt < count; cnt++) {
+            values[from + cnt] = fromHexBytes(data, offset + cnt * size, size);
         }
-        return out;
     }
     
     /**
@@ -92,11 +202,38 @@ public class Coder {
      * @param off The offset where to start coding
      */
     public static void encode(int value, byte[] data, int off) {
+        data[off] = REVERSED[(value >> 8) & 0xff];
+        data[off + 1] = REVERSED[value & 0xff];
+    }
+    
+    /**
+     * Encode an integer (actually a word) value into a buffer, at its
+     * current position.
+     * 
+     * @param value The value to encode
+     * @param data The buffer to encode into. Its position is advanced by 2
+     */
+    public static void encode(int value, ByteBuffer data) {
+        data.put(REVERSED[(value >> 8) & 0xff]);
+        data.put(REVERSED[value & 0xff]);
+    }
+    
+    /**
+     * Encode a block of words into a byte array.
+     * 
+     * @param values The values to encode
+     * @param from The index of the first value to encode
+     * @param count The number of values to encode
+     * @param data The buffer to encode into
+     * @param off The offset where to start coding
+     */
+    public static void encode(int[] values, int from, int count, byte[] data, int off) {
         int offset = off;
-        int highbyte = ((value >> 8) & 0xff);
-        data[offset++] = (byte) swap(highbyte);
-        int lowbyte = value & 0xff;
-        data[offset] = (byte) swap(lowbyte);
+        for (int cnt = from; cnt < from + count; cnt++) {
+            int value = values[cnt];
+            data[offset++] = REVERSED[(value >> 8) & 0xff];
+            data[offset++] = REVERSED[value & 0xff];
+        }
     }
     
     /**
@@ -107,9 +244,52 @@ public class Coder {
      * @return The word value
      */
     public static int decode(byte[] data, int off) {
+        return ((REVERSED[data[off] & 0xff] & 0xff) << 8) | (REVERSED[data[off + 1] & 0xff] & 0xff);
+    }
+    
+    /**
+     * Decode an integer (actually a word) value from the current position
+     * of a buffer.
+     * 
+     * @param data The buffer to decode from. Its position is advanced by 2
+     * @return The word value
+     */
+    public static int decode(ByteBuffer data) {
+        int highbyte = REVERSED[data.get() & 0xff] & 0xff;
+        return (highbyte << 8) | (REVERSED[data.get() & 0xff] & 0xff);
+    }
+    
+    /**
+     * Decode a block of words from a byte array.
+     * 
+     * @param data The buffer to decode from
+     * @param off The offset where to start the coding
+     * @param values The output values
+     * @param from The index of the first value to set
+     * @param count The number of values to decode
+     */
+    public static void decode(byte[] data, int off, int[] values, int from, int count) {
         int offset = off;
-        int highbyte = swap(data[offset++]);
-        int lowbyte = swap(data[offset]);
-        return ((highbyte << 8) | (lowbyte)) & 0xffff; 
-     }
+        for (int cnt = from; cnt < from + count; cnt++) {
+            int highbyte = REVERSED[data[offset++] & 0xff] & 0xff;
+            values[cnt] = (highbyte << 8) | (REVERSED[data[offset++] & 0xff] & 0xff);
+        }
+    }
+    
+    /**
+     * Decode a block of bits from a byte array. Bits are packed eight per byte,
+     * in the same bit order as the words of {@link #decode(byte[], int)}.
+     * 
+     * @param data The buffer to decode from
+     * @param off The offset where to start the coding
+     * @param values The output values, 0 or 1
+     * @param from The index of the first value to set
+     * @param count The number of bits to decode
+     */
+    public static void decodeBits(byte[] data, int off, int[] values, int from, int count) {
+        for (int cnt = 0; cnt < count; cnt++) {
+            int bits = REVERSED[data[off + (cnt >> 3)] & 0xff];
+            values[from + cnt] = (bits >> (cnt & 7)) & 1;
+        }
+    }
 }
@@ -51,4 +51,21 @@ public interface Master {
      * request. Null if no reply was received
      */
     public byte[] request(int destination, byte type, int startAddress, int size);
+    
+    /**
+     * Request data from a slave into a buffer of the caller. Unlike
+     * {@link #request(int, byte, int, int)}, no result array is allocated.
+     * 
+     * @param destination The destination/slave number
+     * @param type The type of the message. One of the request types
+     * according to the COMLI specification
+     * @param startAddress The start address
+     * @param size The size to request
+     * @param data The buffer to store the data that was sent back by the slave
+     * @param offset The offset in the buffer
+     * @return The number of bytes sent back by the slave. -1 if no reply was 
+     * received or if it doesn't fit into the buffer
+     */
+    public int request(int destination, byte type, int startAddress, int size, 
+            byte[] data, int offset);
 }
\ No newline at end of file
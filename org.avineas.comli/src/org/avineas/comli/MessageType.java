@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli;
+
+/**
+ * Registry of the COMLI message types. For each of the 256 possible type bytes the
+ * registry knows the kind of message, the type of the response to a request and the
+ * elements that are transferred. Looking up a type is a single table access, so it can be
+ * done for every packet. The kinds of the types are taken from the COMLI specification,
+ * as are the elements of the data types: '0' (transfer) and '2' (request) carry 16 bit
+ * registers, '3' (transfer) and '4' (request) carry individual bits. Other types carry raw
+ * bytes. Response types and elements can be redefined with
+ * {@link #define(byte, Kind, byte, Element)}, like for installations that use '0' and '2'
+ * for I/O bits. The registry is a single table in the JVM: a redefinition applies to all
+ * masters, slaves and links in it, so it cannot differ per slave.
+ * 
+ * @author A. van Wijngaarden
+ */
+public final class MessageType {
+    /** The type of acknowledgment messages. */
+    public static final byte ACK = 0x31;
+    private static final String REQUESTS = "24579:<BEGIKLOQSUWZ]^";
+    private static volatile MessageType[] types = new MessageType[256];
+    private final byte code;
+    private final Kind kind;
+    private final byte response;
+    private final Element element;
+    
+    /**
+     * The kind of a message.
+     */
+    public enum Kind {
+        /** A request for data, answered with a transfer. */
+        REQUEST, 
+        /** A transfer of data, answered with an acknowledgment. */
+        TRANSFER, 
+        /** An acknowledgment of a transfer. */
+        ACK
+    }
+    
+    /**
+     * The elements transferred in the data of a message.
+     */
+    public enum Element {
+        /** Raw bytes, no interpretation. */
+        BYTES, 
+        /** I/O bits, packed eight per byte. */
+        BITS, 
+        /** 16 bit registers. */
+        REGISTERS
+    }
+    
+    static {
+        for (int cnt = 0; cnt < 256; cnt++) {
+            byte code = (byte) cnt;
+            Kind kind = Kind.TRANSFER;
+            if (code == ACK) 
+                kind = Kind.ACK;
+            else if (REQUESTS.indexOf(cnt) >= 0) 
+                kind = Kind.REQUEST;
+            types[cnt] = new MessageType(code, kind, (byte) 0, Element.BYTES);
+        }
+        // Transfers and requests of registers and of individual bits
+        types['0'] = new MessageType((byte) '0', Kind.TRANSFER, (byte) 0, Element.REGISTERS);
+        types['2'] = new MessageType((byte) '2', Kind.REQUEST, (byte) '0', Element.REGISTERS);
+        types['3'] = new MessageType((byte) '3', Kind.TRANSFER, (byte) 0, Element.BITS);
+        types['4'] = new MessageType((byte) '4', Kind.REQUEST, (byte) '3', Element.BITS);
+    }
+    
+    private MessageType(byte code, Kind kind, byte response, Element element) {
+        this.code = code;
+        this.kind = kind;
+        this.response = response;
+        this.element = element;
+    }
+    
+    /**
+     * Get the definition of a message type.
+     * 
+     * @param type The type byte, as present in a packet
+     * @return The definition of the type, never null
+     */
+    public static MessageType get(byte type) {
+        return types[type & 0xff];
+    }
+    
+    /**
+     * Define (or redefine) a message type. The definition is global: it applies to every
+     * master, slave and link in the JVM, including the ones already running.
+     * 
+     * @param type The type byte
+     * @param kind The kind of message
+     * @param response The type of the response to a request, 0 if any transfer is fine
+     * @param element The elements transferred in the data
+     */
+    public static synchronized void define(byte type, Kind kind, byte response, Element element) {
+        MessageType[] newTypes = types.clone();
+        newTypes[type & 0xff] = new MessageType(type, kind, response, element);
+        types = newTypes;
+    }
+    
+    public byte getCode() {
+        return code;
+    }
+    
+    public Kind getKind() {
+        return kind;
+    }
+    
+    public boolean isRequest() {
+        return kind == Kind.REQUEST;
+    }
+    
+    public boolean isTransfer() {
+        return kind == Kind.TRANSFER;
+    }
+    
+    public boolean isAck() {
+        return kind == Kind.ACK;
+    }
+    
+    /**
+     * Get the type of the response to a request.
+     * 
+     * @return The response type, 0 if not known
+     */
+    public byte getResponse() {
+        return response;
+    }
+    
+    /**
+     * Check whether a type is a valid response to this type.
+     * 
+     * @param type The type of the response
+     * @return True if the response type matches
+     */
+    public boolean isResponse(byte type) {
+        switch (kind) {
+        case REQUEST:
+            return (response != 0) ? type == response : get(type).isTransfer();
+        case TRANSFER:
+            return get(type).isAck();
+        default:
+            return false;
+        }
+    }
+    
+    public Element getElement() {
+        return element;
+    }
+    
+    /**
+     * Get the number of elements in data of a specific size.
+     * 
+     * @param size The size of the data in bytes
+     * @return The number of elements
+     */
+    public int getElementCount(int size) {
+        switch (element) {
+        case BITS:
+            return size * 8;
+        case REGISTERS:
+            return size / 2;
+        default:
+            return size;
+        }
+    }
+    
+    /**
+     * Get the position, in bytes, of an address in the memory of this type. Addresses count
+     * the elements: registers for register types, bits for bit types and bytes otherwise.
+     * 
+     * @param address The address
+     * @return The position in bytes, -1 if the address is not at the start of a byte
+     */
+    public int getPosition(int address) {
+        switch (element) {
+        case BITS:
+            return (address % 8 == 0) ? address / 8 : -1;
+        case REGISTERS:
+            return address * 2;
+        default:
+            return address;
+        }
+    }
+    
+    /**
+     * Get the address of a position in the memory of this type. The reverse of 
+     * {@link #getPosition(int)}.
+     * 
+     * @param position The position in bytes, a multiple of {@link #getGranularity()}
+     * @return The address
+     */
+    public int getAddress(int position) {
+        switch (element) {
+        case BITS:
+            return position * 8;
+        case REGISTERS:
+            return position / 2;
+        default:
+            return position;
+        }
+    }
+    
+    /**
+     * Get the size, in bytes, of the smallest unit of data of this type. Data sizes and the
+     * positions of addresses are multiples of it.
+     * 
+     * @return 2 for registers, 1 otherwise
+     */
+    public int getGranularity() {
+        return (element == Element.REGISTERS) ? 2 : 1;
+    }
+    
+    /**
+     * Decode the data of a message into values, according to the elements of this type.
+     * 
+     * @param data The buffer with the data
+     * @param off The offset of the data in the buffer
+     * @param size The size of the data
+     * @param values The values to fill, must have room for {@link #getElementCount(int)} values
+     * @param from The index of the first value to fill
+     * @return The number of values decoded
+     */
+    public int decode(byte[] data, int off, int size, int[] values, int from) {
+        int count = getElementCount(size);
+        switch (element) {
+        case BITS:
+            Coder.decodeBits(data, off, values, from, count);
+            break;
+        case REGISTERS:
+            Coder.decode(data, off, values, from, count);
+            break;
+        default:
+            for (int cnt = 0; cnt < count; cnt++) {
+                values[from + cnt] = data[off + cnt] & 0xff;
+            }
+        }
+        return count;
+    }
+    
+    @Override
+    public String toString() {
+        return "'" + (char) (code & 0xff) + "' " + kind + "/" + element;
+    }
+}
@@ -27,11 +27,11 @@ import org.avineas.comli.Coder;
  * @since 24-sep-2007
  */
 public class AddressContents {
-    private static final int ADDRESSOFFSET = 0;
-    private static final int ADDRESSSIZE = 4;
-    private static final int COUNTOFFSET = ADDRESSOFFSET  + ADDRESSSIZE;
-    private static final int COUNTSIZE = 2;
-    private static final int DATAOFFSET = COUNTOFFSET + COUNTSIZE;
+    static final int ADDRESSOFFSET = 0;
+    static final int ADDRESSSIZE = 4;
+    static final int COUNTOFFSET = ADDRESSOFFSET  + ADDRESSSIZE;
+    static final int COUNTSIZE = 2;
+    static final int DATAOFFSET = COUNTOFFSET + COUNTSIZE;
     public static final int HEADERSIZE = DATAOFFSET;
     private byte[] contents = new byte[Packet.MAXSIZE - Packet.HEADERSIZE];
     private int size = DATAOFFSET;
@@ -75,8 +75,7 @@ public class AddressContents {
     }
     
     public void setAddress(int address) {
-        System.arraycopy(Coder.toHexBytes(address, ADDRESSSIZE), 0, 
-            contents, ADDRESSOFFSET, ADDRESSSIZE);
+        Coder.toHexBytes(address, ADDRESSSIZE, contents, ADDRESSOFFSET);
     }
 
     public int getCount() {
@@ -84,8 +83,7 @@ public class AddressContents {
     }
     
     public void setCount(int cnt) {
-        System.arraycopy(Coder.toHexBytes(cnt, COUNTSIZE), 0, 
-            contents, COUNTOFFSET, COUNTSIZE);
+        Coder.toHexBytes(cnt, COUNTSIZE, contents, COUNTOFFSET);
     }
     
     public void setData(byte[] data, int offset, int size) {
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.avineas.comli.Master;
+import org.avineas.comli.MessageType;
+
+/**
+ * Base of batches of address ranges that are exchanged with a single slave using a single
+ * message type. The ranges are sorted and combined into as few transactions as possible,
+ * each with at most {@link Packet#MAXDATASIZE} bytes. Ranges larger than that are split.
+ * The plan is made once and reused for every execution of the batch, until ranges are
+ * added or removed.
+ * <br/>
+ * Addresses count the elements of the type, as defined in the {@link MessageType} registry 
+ * when the batch is constructed: registers, bits or bytes. Sizes are in bytes. Ranges are
+ * planned on their positions in bytes, so a range must consist of whole elements: ranges of
+ * bit types start at a multiple of 8, ranges of register types have an even size.
+ * <br/>
+ * Batches are not thread safe.
+ * 
+ * @author A. van Wijngaarden
+ */
+public abstract class Batch {
+    private static final Comparator<Range> BYSTART = new Comparator<Range>() {
+        @Override
+        public int compare(Range range1, Range range2) {
+            return (range1.start < range2.start) ? -1 : ((range1.start > range2.start) ? 1 : 0);
+        }
+    };
+    private Master master;
+    private int destination;
+    private byte type;
+    private MessageType messageType;
+    private int maxSize;
+    private List<Range> ranges = new ArrayList<Range>();
+    private List<Transaction> transactions;
+    byte[] buffer = new byte[Packet.MAXDATASIZE];
+    
+    Batch(Master master, int destination, byte type) {
+        this.master = master;
+        this.destination = destination;
+        this.type = type;
+        this.messageType = MessageType.get(type);
+        this.maxSize = align(Packet.MAXDATASIZE);
+    }
+    
+    Master getMaster() {
+        return master;
+    }
+    
+    public int getDestination() {
+        return destination;
+    }
+    
+    public byte getType() {
+        return type;
+    }
+    
+    /**
+     * Set the maximum size of the data of a single transaction.
+     * 
+     * @param maxSize The size in bytes, defaults to and at most {@link Packet#MAXDATASIZE}.
+     * Rounded down to whole elements
+     */
+    public void setMaxSize(int maxSize) {
+        int granularity = messageType.getGranularity();
+        this.maxSize = Math.max(granularity, align(Math.min(maxSize, Packet.MAXDATASIZE)));
+        transactions = null;
+    }
+    
+    private int align(int size) {
+        return size - size % messageType.getGranularity();
+    }
+    
+    /**
+     * Get the start address of a transaction.
+     * 
+     * @param transaction The transaction
+     * @return The address, in elements of the type
+     */
+    int getAddress(Transaction transaction) {
+        return messageType.getAddress(transaction.start);
+    }
+    
+    /**
+     * Add a range to the batch.
+     * 
+     * @param startAddress The start address of the range
+     * @param size The size of the range in bytes
+     * @param data The caller buffer that belongs to the range
+     * @param offset The offset of the range in the buffer
+     * @throws IllegalArgumentException If the range doesn't consist of whole elements
+     */
+    public void add(int startAddress, int size, byte[] data, int offset) {
+        if (size <= 0) return;
+        int position = messageType.getPosition(startAddress);
+        if (position < 0 || size % messageType.getGranularity() != 0) {
+            throw new IllegalArgumentException("range " + startAddress + "/" + size + 
+                " doesn't consist of whole elements of " + messageType);
+        }
+        ranges.add(new Range(position, size, data, offset));
+        transactions = null;
+    }
+    
+    void clearPlan() {
+        transactions = null;
+    }
+    
+    /**
+     * Remove all ranges.
+     */
+    public void clear() {
+        ranges.clear();
+        transactions = null;
+    }
+    
+    /**
+     * Check whether a range may be added to the transaction that ends at a position.
+     * 
+     * @param end The position after the last byte of the transaction
+     * @param start The start position of the range
+     * @return True if the range can be combined with the transaction
+     */
+    abstract boolean mergeable(int end, int start);
+    
+    /**
+     * Execute a single transaction.
+     * 
+     * @param transaction The transaction
+     * @param sorted The ranges of the batch, sorted on start position
+     * @return True if the transaction was successful
+     */
+    abstract boolean execute(Transaction transaction, List<Range> sorted);
+    
+    private List<Transaction> plan() {
+        Collections.sort(ranges, BYSTART);
+        List<Transaction> plan = new ArrayList<Transaction>();
+        Transaction current = null;
+        for (Range range : ranges) {
+            int start = range.start;
+            int end = range.start + range.size;
+            // The ranges are sorted, so the transactions made so far cover all 
+            // positions from the start of this range until the end of the current one.
+            if (current != null && current.start + current.size >= end) continue;
+            if (current != null && start < current.start + maxSize && 
+                    mergeable(current.start + current.size, start)) {
+                start = current.start + current.size;
+            }
+            else {
+                current = null;
+            }
+            while (start < end) {
+                if (current == null || current.size >= maxSize) {
+                    current = new Transaction(start);
+                    plan.add(current);
+                }
+                int size = Math.min(end, current.start + maxSize) - current.start;
+                current.size = size;
+                start = current.start + size;
+            }
+        }
+        return plan;
+    }
+    
+    /**
+     * Get the number of transactions needed for the ranges of this batch.
+     * 
+     * @return The number of transactions
+     */
+    public int getTransactions() {
+        if (transactions == null) transactions = plan();
+        return transactions.size();
+    }
+    
+    /**
+     * Execute the batch.
+     * 
+     * @return The number of transactions that failed, 0 if the batch was successful
+     */
+    public int execute() {
+        if (transactions == null) transactions = plan();
+        int failed = 0;
+        for (Transaction transaction : transactions) {
+            if (!execute(transaction, ranges)) failed++;
+        }
+        return failed;
+    }
+    
+    /**
+     * A range of a caller, at its position in bytes.
+     */
+    static class Range {
+        int start;
+        int size;
+        byte[] data;
+        int offset;
+        
+        Range(int start, int size, byte[] data, int offset) {
+            this.start = start;
+            this.size = size;
+            this.data = data;
+            this.offset = offset;
+        }
+    }
+    
+    /**
+     * A transaction of the plan, at its position in bytes.
+     */
+    static class Transaction {
+        int start;
+        int size;
+        
+        Transaction(int start) {
+            this.start = start;
+        }
+        
+        /**
+         * Check whether a range starts after this transaction. Since the ranges are sorted,
+         * all following ranges do as well.
+         */
+        boolean before(Range range) {
+            return range.start >= start + size;
+        }
+        
+        /**
+         * Copy the overlap of a range and the transaction between the caller buffer and
+         * the transaction buffer.
+         * 
+         * @param range The range
+         * @param buffer The transaction buffer
+         * @param toRange True to copy to the caller buffer, false to copy from it
+         */
+        void copy(Range range, byte[] buffer, boolean toRange) {
+            int from = Math.max(start, range.start);
+            int to = Math.min(start + size, range.start + range.size);
+            if (to <= from) return;
+            if (toRange) 
+                System.arraycopy(buffer, from - start, range.data, range.offset + from - range.start, to - from);
+            else
+                System.arraycopy(range.data, range.offset + from - range.start, buffer, from - start, to - from);
+        }
+    }
+}
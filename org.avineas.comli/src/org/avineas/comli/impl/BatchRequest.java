@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.util.List;
+
+import org.avineas.comli.Master;
+
+/**
+ * Batch of address ranges that are requested from a slave. Ranges that are adjacent or close
+ * to each other are requested in a single transaction, the data received is copied to the
+ * buffers of the ranges. How close ranges must be is set with the gap tolerance: the number of
+ * bytes that may be requested without being needed.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class BatchRequest extends Batch {
+    private int gap;
+    
+    /**
+     * Construct a batch.
+     * 
+     * @param master The master to request with
+     * @param destination The slave to request from
+     * @param type The request type
+     */
+    public BatchRequest(Master master, int destination, byte type) {
+        super(master, destination, type);
+    }
+    
+    /**
+     * Set the number of bytes between ranges that may be requested to combine the ranges
+     * in a single transaction.
+     * 
+     * @param gap The gap tolerance, defaults to 0: only adjacent ranges are combined
+     */
+    public void setGapTolerance(int gap) {
+        this.gap = gap;
+        clearPlan();
+    }
+
+    @Override
+    boolean mergeable(int end, int start) {
+        return start - end <= gap;
+    }
+    
+    @Override
+    boolean execute(Transaction transaction, List<Range> sorted) {
+        int size = getMaster().request(getDestination(), getType(), getAddress(transaction), 
+            transaction.size, buffer, 0);
+        if (size < transaction.size) return false;
+        for (Range range : sorted) {
+            if (transaction.before(range)) break;
+            transaction.copy(range, buffer, true);
+        }
+        return true;
+    }
+}
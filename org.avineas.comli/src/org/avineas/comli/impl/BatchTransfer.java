@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.util.List;
+
+import org.avineas.comli.Master;
+
+/**
+ * Batch of address ranges that are transferred to a slave. Only ranges that are adjacent are
+ * combined in a single transaction, since bytes between ranges must not be overwritten. The
+ * data is taken from the buffers of the ranges at the moment the batch is executed.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class BatchTransfer extends Batch {
+    /**
+     * Construct a batch.
+     * 
+     * @param master The master to transfer with
+     * @param destination The slave to transfer to
+     * @param type The transfer type
+     */
+    public BatchTransfer(Master master, int destination, byte type) {
+        super(master, destination, type);
+    }
+
+    @Override
+    boolean mergeable(int end, int start) {
+        return start == end;
+    }
+    
+    @Override
+    boolean execute(Transaction transaction, List<Range> sorted) {
+        for (Range range : sorted) {
+            if (transaction.before(range)) break;
+            transaction.copy(range, buffer, false);
+        }
+        return getMaster().transfer(getDestination(), getType(), getAddress(transaction), 
+            buffer, 0, transaction.size);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import org.avineas.comli.Master;
+import org.avineas.comli.MessageType;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Master that keeps an image of the memory of the slaves in front of another master. Requests
+ * are served from the image when all data requested is fresh, that is: younger than the
+ * maximum age. Otherwise the request is passed to the wrapped master and its result is stored
+ * in the image.
+ * <br/>
+ * The image can be kept up to date by scans with different periods (scan classes) that are
+ * polled over a link of a {@link PollingEngine}. Transfers are passed to the wrapped master
+ * and, when successful, are written through to the image, or invalidate it, see 
+ * {@link #setWriteThrough(boolean)}.
+ * <br/>
+ * Data is stamped with the time its request was started. Data of a request or scan that was
+ * started before the last transfer to a range is not stored in that range, so a late answer 
+ * never overwrites newer data.
+ * <br/>
+ * The memory of a slave is divided by the transfer type of the data: requests are stored in
+ * the image of the transfer type that answers them, as defined in the {@link MessageType}
+ * registry. Requests without a defined response have an image of their own, transfers to 
+ * such images always invalidate the range.
+ * <br/>
+ * The images hold the memory of a slave in bytes. Addresses count the elements of the type,
+ * as defined in the {@link MessageType} registry, and are converted to positions in bytes. 
+ * Data of bit types that doesn't start at a byte is not served from or stored in the image,
+ * a transfer of it invalidates the bytes it touches.
+ * <br/>
+ * The statistics count the requests served as reads and the transfers as writes. The extras
+ * contain the number of requests served from the image (hits) and the ones passed on (misses).
+ * 
+ * @author A. van Wijngaarden
+ */
+public class CachingMaster implements Master, StatisticsProvider {
+    private static final long MS = 1000000L;
+    private Master master;
+    private PollingLink link;
+    private long maxAge;
+    private boolean writeThrough = true;
+    private Image[][] images = new Image[256][];
+    private SimpleStatistics statistics = new SimpleStatistics(0, 0);
+    private int hits;
+    private int misses;
+    private Scan.Listener listener = new Scan.Listener() {
+        @Override
+        public void scanned(Scan scan, byte[] data, int size) {
+            int position = MessageType.get(scan.getType()).getPosition(scan.getStartAddress());
+            getImage(scan.getDestination(), getSpace(scan.getType()), true).store(
+                position, data, 0, size, scan.getLastStart());
+        }
+        
+        @Override
+        public void failed(Scan scan) {
+            // The data simply gets older.
+        }
+    };
+    
+    /**
+     * Construct a caching master.
+     * 
+     * @param master The master to pass requests and transfers to
+     * @param link The link to poll the scans over, null if scans are not used. Must 
+     * poll over the same master
+     * @param maxAge The maximum age of data served from the image, in ms
+     */
+    public CachingMaster(Master master, PollingLink link, long maxAge) {
+        this.master = master;
+        this.link = link;
+        this.maxAge = maxAge * MS;
+    }
+    
+    /**
+     * Set whether transfers update the image, or invalidate the range transferred.
+     * 
+     * @param writeThrough True to update the image, the default
+     */
+    public void setWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+    }
+    
+    /**
+     * Keep a range of the image up to date by polling it periodically. Ranges larger
+     * than {@link Packet#MAXDATASIZE} are polled in parts of whole elements.
+     * 
+     * @param destination The slave to poll
+     * @param type The request type
+     * @param startAddress The start address
+     * @param size The size of the range in bytes
+     * @param period The scan class: the time between the polls, in ms
+     * @throws IllegalArgumentException If the range of a bit type doesn't start at a byte
+     */
+    public void scan(int destination, byte type, int startAddress, int size, long period) {
+        if (link == null) 
+            throw new IllegalStateException("no polling link to scan over");
+        MessageType messageType = MessageType.get(type);
+        if (messageType.getPosition(startAddress) < 0) 
+            throw new IllegalArgumentException("scan of " + startAddress + " doesn't start at a byte");
+        // Create the image now, so transfers invalidate it while the first poll is in progress.
+        getImage(destination, getSpace(type), true);
+        int part = Packet.MAXDATASIZE - Packet.MAXDATASIZE % messageType.getGranularity();
+        for (int offset = 0; offset < size; offset += part) {
+            link.addScan(destination, type, startAddress + messageType.getAddress(offset), 
+                Math.min(part, size - offset), period, listener);
+        }
+    }
+    
+    /**
+     * Get the type that determines the image that belongs to a type.
+     */
+    private static int getSpace(byte type) {
+        MessageType messageType = MessageType.get(type);
+        if (messageType.isRequest() && messageType.getResponse() != 0) 
+            return messageType.getResponse() & 0xff;
+        return type & 0xff;
+    }
+    
+    private synchronized Image getImage(int destination, int space, boolean create) {
+        if (destination < 0 || destination > 255) return null;
+        Image[] slave = images[destination];
+        if (slave == null) {
+            if (!create) return null;
+            slave = new Image[256];
+            images[destination] = slave;
+        }
+        Image image = slave[space];
+        if (image == null && create) {
+            image = new Image();
+            slave[space] = image;
+        }
+        return image;
+    }
+    
+    private boolean fromImage(int destination, byte type, int position, int size, 
+            byte[] data, int offset) {
+        Image image = getImage(destination, getSpace(type), false);
+        boolean hit = image != null && image.get(position, size, data, offset, System.nanoTime() - maxAge);
+        synchronized (statistics) {
+            statistics.read();
+            if (hit) hits++;
+            else misses++;
+        }
+        return hit;
+    }
+    
+    @Override
+    public byte[] request(int destination, byte type, int startAddress, int size) {
+        byte[] data = new byte[size];
+        int received = request(destination, type, startAddress, size, data, 0);
+        if (received < 0) return null;
+        if (received == size) return data;
+        byte[] toReturn = new byte[received];
+        System.arraycopy(data, 0, toReturn, 0, received);
+        return toReturn;
+    }
+
+    @Override
+    public int request(int destination, byte type, int startAddress, int size, byte[] data, 
+            int offset) {
+        // Positions of data that doesn't start at a byte are -1, which the image ignores.
+        int position = MessageType.get(type).getPosition(startAddress);
+        if (fromImage(destination, type, position, size, data, offset)) return size;
+        // The image must exist before the request, so transfers meanwhile invalidate it.
+        Image image = getImage(destination, getSpace(type), true);
+        long started = System.nanoTime();
+        int received = master.request(destination, type, startAddress, size, data, offset);
+        if (received > 0 && image != null) {
+            image.store(position, data, offset, received, started);
+        }
+        return received;
+    }
+
+    /**
+     * Invalidate a range in the images of the requests that don't have a defined response,
+     * since it is unknown whether a transfer changes them.
+     */
+    private void invalidateUnmapped(int destination, int position, int size) {
+        Image[] slave;
+        synchronized (this) {
+            if (destination < 0 || destination > 255 || images[destination] == null) return;
+            slave = images[destination].clone();
+        }
+        for (int space = 0; space < slave.length; space++) {
+            if (slave[space] == null) continue;
+            MessageType messageType = MessageType.get((byte) space);
+            if (messageType.isRequest() && messageType.getResponse() == 0) 
+                slave[space].invalidate(position, size);
+        }
+    }
+    
+    @Override
+    public boolean transfer(int destination, byte type, int startAddress, byte[] contents, 
+            int offset, int size) {
+        synchronized (statistics) {
+            statistics.written();
+        }
+        // Invalidate first, so nobody reads stale data while the transfer is in progress and
+        // requests in progress don't store their data afterwards.
+        Image image = getImage(destination, type & 0xff, true);
+        if (image == null) return master.transfer(destination, type, startAddress, contents, 
+            offset, size);
+        MessageType messageType = MessageType.get(type);
+        int position = messageType.getPosition(startAddress);
+        int affected = size;
+        if (position < 0) {
+            // Bits that don't start at a byte change parts of the bytes around them.
+            position = messageType.getPosition(startAddress - startAddress % 8);
+            affected = size + 1;
+        }
+        long change = image.invalidate(position, affected);
+        invalidateUnmapped(destination, position, affected);
+        boolean success = master.transfer(destination, type, startAddress, contents, offset, size);
+        if (success && writeThrough && affected == size) {
+            image.update(position, contents, offset, size, change);
+        }
+        return success;
+    }
+    
+    /**
+     * Get the ratio of requests that were served from the image.
+     * 
+     * @return The hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        synchronized (statistics) {
+            return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    @Override
+    public Statistics getStatistics() {
+        synchronized (statistics) {
+            statistics.setExtra("hits", hits);
+            statistics.setExtra("misses", misses);
+            return statistics;
+        }
+    }
+
+    @Override
+    public void resetCounters() {
+        synchronized (statistics) {
+            statistics.reset();
+            hits = 0;
+            misses = 0;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.nio.ByteBuffer;
+
+import org.avineas.comli.MessageType;
+
+/**
+ * Resumable decoder of the COMLI link layer. Unlike {@link LinkHandler#read(org.avineas.io.ReadChannel, 
+ * long, org.apache.commons.logging.Log)}, it doesn't read from a channel itself but is fed with
+ * chunks of bytes as they arrive, of any size. The decoder keeps track of where it is in a frame 
+ * (STX, header, address and quantity, data, ETX and BCC) and passes every complete and correct 
+ * packet to a handler. This allows COMLI to be run on non-blocking transports without a thread
+ * per link.
+ * <br/>
+ * The inter-character time out is enforced with a deadline: a frame that is not continued before
+ * its deadline is dropped when the next bytes arrive or when {@link #checkTimeout()} is called.
+ * The decoder is not thread safe and doesn't allocate objects while decoding.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class ComliDecoder {
+    private static final byte STX = 0x2;
+    private static final byte ETX = 0x3;
+    private static final long MS = 1000000L;
+    private Handler handler;
+    private long interCharTimeout;
+    private byte[] data = new byte[LinkHandler.BUFFERSIZE];
+    private PacketView view = new PacketView();
+    private State state = State.STX;
+    private int size;
+    private int needed;
+    private int bcc;
+    private long deadline;
+    
+    /**
+     * The states of the decoder, named after the part of the frame that is expected.
+     */
+    private enum State {
+        STX, HEADER, ADDRESS, DATA, ETX, BCC
+    }
+    
+    /**
+     * Interface for handling the decoded packets.
+     */
+    public interface Handler {
+        /**
+         * Handle a decoded packet.
+         * 
+         * @param packet The packet. Only valid during the call
+         */
+        public void packet(PacketView packet);
+        
+        /**
+         * Handle a protocol error. The frame that was being decoded is dropped.
+         * 
+         * @param reason The description of the error
+         */
+        public void error(String reason);
+    }
+    
+    /**
+     * Construct a decoder.
+     * 
+     * @param handler The handler of the packets decoded
+     * @param interCharTimeout The maximum time between the characters of a frame, in ms
+     */
+    public ComliDecoder(Handler handler, long interCharTimeout) {
+        this.handler = handler;
+        this.interCharTimeout = interCharTimeout;
+    }
+    
+    /**
+     * Decode a chunk of bytes.
+     * 
+     * @param chunk The buffer with the bytes
+     * @param offset The offset of the bytes in the buffer
+     * @param length The number of bytes
+     */
+    public void decode(byte[] chunk, int offset, int length) {
+        if (length <= 0) return;
+        checkTimeout();
+        for (int cnt = offset; cnt < offset + length; cnt++) {
+            decode(chunk[cnt]);
+        }
+        touch();
+    }
+    
+    /**
+     * Decode the remaining bytes of a buffer.
+     * 
+     * @param chunk The buffer with the bytes. It is read completely
+     */
+    public void decode(ByteBuffer chunk) {
+        if (!chunk.hasRemaining()) return;
+        checkTimeout();
+        while (chunk.hasRemaining()) {
+            decode(chunk.get());
+        }
+        touch();
+    }
+    
+    private void touch() {
+        if (state != State.STX)
+            deadline = System.nanoTime() + interCharTimeout * MS;
+    }
+    
+    /**
+     * Get the time at which the frame being decoded times out, so an event loop can 
+     * schedule a call to {@link #checkTimeout()}.
+     * 
+     * @return The deadline, in {@link System#nanoTime()} terms. 0 if no frame is in progress
+     */
+    public long getDeadline() {
+        return (state == State.STX) ? 0 : deadline;
+    }
+    
+    /**
+     * Drop the frame being decoded if its inter-character time out expired.
+     * 
+     * @return True if a frame was dropped
+     */
+    public boolean checkTimeout() {
+        if (state == State.STX || System.nanoTime() - deadline < 0) return false;
+        fail("inter-character time-out after " + (size + 1) + " bytes");
+        return true;
+    }
+    
+    /**
+     * Drop the frame being decoded, if any.
+     */
+    public void reset() {
+        state = State.STX;
+        size = 0;
+    }
+    
+    private void fail(String reason) {
+        reset();
+        handler.error(reason);
+    }
+    
+    private void decode(byte value) {
+        if (state == State.STX) {
+            if (value != STX) {
+                handler.error("received spurious byte " + Integer.toHexString(value & 0xff));
+                return;
+            }
+            state = State.HEADER;
+            needed = Packet.HEADERSIZE;
+            size = 0;
+            bcc = 0;
+            return;
+        }
+        bcc ^= value;
+        switch (state) {
+        case ETX:
+            if (value != ETX) {
+                fail("no ETX found at end of message");
+                return;
+            }
+            state = State.BCC;
+            return;
+        case BCC:
+            if (bcc != 0) {
+                fail("BCC incorrect in packet");
+                return;
+            }
+            int packetSize = size;
+            reset();
+            handler.packet(view.wrap(data, 0, packetSize));
+            return;
+        default:
+            data[size++] = value;
+            if (--needed > 0) return;
+        }
+        // A part of the frame is complete, see what comes next.
+        switch (state) {
+        case HEADER:
+            MessageType type = MessageType.get(data[Packet.TYPEOFFSET]);
+            if (type.isAck()) {
+                next(State.DATA, 1);
+            }
+            else {
+                next(State.ADDRESS, AddressContents.HEADERSIZE);
+            }
+            break;
+        case ADDRESS:
+            view.wrap(data, 0, size);
+            if (view.getMessageType().isRequest()) {
+                next(State.ETX, 0);
+                break;
+            }
+            int count;
+            try {
+                count = view.getCount();
+            } catch (NumberFormatException exc) {
+                fail("invalid quantity in packet");
+                return;
+            }
+            if (size + count > data.length) {
+                fail("packet of " + (size + count) + " bytes is too large");
+                return;
+            }
+            next(State.DATA, count);
+            break;
+        default:
+            next(State.ETX, 0);
+        }
+    }
+    
+    private void next(State nextState, int count) {
+        state = (count == 0 && nextState == State.DATA) ? State.ETX : nextState;
+        needed = count;
+    }
+}
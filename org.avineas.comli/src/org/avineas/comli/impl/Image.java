@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+/**
+ * Image of the memory of a slave as seen by a {@link CachingMaster}. Every byte has the time
+ * it was last received from (or transferred to) the slave and the time it was last changed by
+ * a transfer. Data of a request that started before the last change of a byte is not stored
+ * for that byte, since it may be older than the change. The image grows on demand.
+ * <br/>
+ * The image is indexed by the position in bytes of the data, not by address, see
+ * {@link org.avineas.comli.MessageType#getPosition(int)}.
+ * 
+ * @author A. van Wijngaarden
+ */
+class Image {
+    private byte[] data = new byte[0];
+    private long[] stamps = new long[0];
+    private long[] changes = new long[0];
+    private long lastChange = System.nanoTime();
+    
+    private void ensure(int end) {
+        if (end <= data.length) return;
+        int size = Math.max(end, data.length * 2);
+        byte[] newData = new byte[size];
+        long[] newStamps = new long[size];
+        long[] newChanges = new long[size];
+        System.arraycopy(data, 0, newData, 0, data.length);
+        System.arraycopy(stamps, 0, newStamps, 0, stamps.length);
+        System.arraycopy(changes, 0, newChanges, 0, changes.length);
+        // Bytes that were never changed count as changed long before any request.
+        for (int cnt = changes.length; cnt < size; cnt++) {
+            newChanges[cnt] = lastChange - Long.MAX_VALUE / 2;
+        }
+        data = newData;
+        stamps = newStamps;
+        changes = newChanges;
+    }
+    
+    /**
+     * Store data received from the slave in the image. Bytes that were changed after the
+     * request was started are skipped.
+     * 
+     * @param position The start position in bytes
+     * @param source The buffer with the data
+     * @param offset The offset of the data in the buffer
+     * @param size The size of the data
+     * @param started The time the request for the data was started, in 
+     * {@link System#nanoTime()} terms. Is the time the data was valid
+     */
+    synchronized void store(int position, byte[] source, int offset, int size, long started) {
+        if (position < 0) return;
+        ensure(position + size);
+        for (int cnt = 0; cnt < size; cnt++) {
+            int index = position + cnt;
+            if (changes[index] - started >= 0) continue;
+            data[index] = source[offset + cnt];
+            stamps[index] = started;
+        }
+    }
+    
+    /**
+     * Store data transferred to the slave in the image. Bytes that were changed again after
+     * the change of this transfer are skipped.
+     * 
+     * @param position The start position in bytes
+     * @param source The buffer with the data
+     * @param offset The offset of the data in the buffer
+     * @param size The size of the data
+     * @param change The change of the transfer, as returned by {@link #invalidate(int, int)}
+     */
+    synchronized void update(int position, byte[] source, int offset, int size, long change) {
+        if (position < 0) return;
+        ensure(position + size);
+        for (int cnt = 0; cnt < size; cnt++) {
+            int index = position + cnt;
+            if (changes[index] != change) continue;
+            data[index] = source[offset + cnt];
+            stamps[index] = change;
+        }
+    }
+    
+    /**
+     * Get data from the image, if all of it is fresh enough.
+     * 
+     * @param position The start position in bytes
+     * @param size The size of the data
+     * @param target The buffer to copy the data to
+     * @param offset The offset in the buffer
+     * @param oldest The oldest time that is still fresh, in {@link System#nanoTime()} terms
+     * @return True if the data was fresh and was copied
+     */
+    synchronized boolean get(int position, int size, byte[] target, int offset, long oldest) {
+        if (position < 0 || position + size > data.length) return false;
+        for (int cnt = position; cnt < position + size; cnt++) {
+            if (stamps[cnt] == 0 || stamps[cnt] - oldest < 0) return false;
+        }
+        System.arraycopy(data, position, target, offset, size);
+        return true;
+    }
+    
+    /**
+     * Mark a range as not present and as changed now, so data of requests that are in
+     * progress is not stored in it.
+     * 
+     * @return The change, a unique and increasing time in {@link System#nanoTime()} terms
+     */
+    synchronized long invalidate(int position, int size) {
+        lastChange = Math.max(System.nanoTime(), lastChange + 1);
+        if (position < 0) return lastChange;
+        ensure(position + size);
+        for (int cnt = position; cnt < position + size; cnt++) {
+            stamps[cnt] = 0;
+            changes[cnt] = lastChange;
+        }
+        return lastChange;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.avineas.io.stat.Histogram;
+
+/**
+ * Arbiter of the transactions on a master link. Callers wait in a queue until the link is
+ * handed to them. Transfers (writes) go before requests (polls), but after a run of transfers
+ * a waiting request gets its turn, so polls are not starved. Within each class the link is
+ * handed to the waiting callers in turn, so a busy caller cannot lock out the others. A caller
+ * is identified by a key, like a client or a polling link, that may be shared by many threads:
+ * all transactions with the same key wait behind each other, while the other callers take
+ * turns with them. Callers that use their thread as key are served first come, first served.
+ * 
+ * @author A. van Wijngaarden
+ */
+class LinkArbiter {
+    private CallerQueue transfers = new CallerQueue();
+    private CallerQueue requests = new CallerQueue();
+    private Histogram transferWaits = new Histogram(24);
+    private Histogram requestWaits = new Histogram(24);
+    private int maxTransferRun = 8;
+    private int transferRun;
+    private boolean busy;
+    
+    /**
+     * Set the number of transfers that may be done in a row while a request is waiting.
+     * 
+     * @param maxTransferRun The number of transfers, defaults to 8
+     */
+    synchronized void setMaxTransferRun(int maxTransferRun) {
+        this.maxTransferRun = maxTransferRun;
+    }
+    
+    /**
+     * Wait until the link is handed to the calling thread.
+     * 
+     * @param transfer True for a transfer, false for a request
+     * @param caller The key of the caller, used for taking turns
+     * @return False if the caller was interrupted while waiting and didn't get the link
+     */
+    synchronized boolean acquire(boolean transfer, Object caller) {
+        Ticket ticket = new Ticket(transfer, caller);
+        CallerQueue queue = transfer ? transfers : requests;
+        queue.add(ticket);
+        grant();
+        while (!ticket.granted) {
+            try {
+                this.wait();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                if (ticket.granted) break;
+                queue.remove(ticket);
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Hand the link back, after a successful {@link #acquire(boolean, Object)}.
+     */
+    synchronized void release() {
+        busy = false;
+        grant();
+    }
+    
+    private void grant() {
+        if (busy) return;
+        Ticket next;
+        if (requests.isEmpty()) {
+            transferRun = 0;
+            next = transfers.poll();
+        }
+        else if (transfers.isEmpty() || transferRun >= maxTransferRun) {
+            transferRun = 0;
+            next = requests.poll();
+        }
+        else {
+            transferRun++;
+            next = transfers.poll();
+        }
+        if (next == null) return;
+        busy = true;
+        next.granted = true;
+        long wait = (System.nanoTime() - next.queued) / 1000L;
+        (next.transfer ? transferWaits : requestWaits).add(wait);
+        this.notifyAll();
+    }
+    
+    /**
+     * Get the histogram of the time, in us, transfers waited for the link.
+     */
+    Histogram getTransferWaits() {
+        return transferWaits;
+    }
+    
+    /**
+     * Get the histogram of the time, in us, requests waited for the link.
+     */
+    Histogram getRequestWaits() {
+        return requestWaits;
+    }
+    
+    /**
+     * Get the number of callers waiting for the link.
+     */
+    synchronized int getWaiting() {
+        return transfers.size() + requests.size();
+    }
+    
+    void resetCounters() {
+        transferWaits.reset();
+        requestWaits.reset();
+    }
+    
+    private static class Ticket {
+        Object caller;
+        boolean transfer;
+        long queued = System.nanoTime();
+        boolean granted;
+        
+        Ticket(boolean transfer, Object caller) {
+            this.transfer = transfer;
+            this.caller = caller;
+        }
+    }
+    
+    /**
+     * Queue that serves its callers round robin: the caller that is served is moved to the
+     * end of the line.
+     */
+    private static class CallerQueue {
+        private Map<Object, LinkedList<Ticket>> callers = new LinkedHashMap<Object, LinkedList<Ticket>>();
+        private int size;
+        
+        void add(Ticket ticket) {
+            LinkedList<Ticket> tickets = callers.get(ticket.caller);
+            if (tickets == null) {
+                tickets = new LinkedList<Ticket>();
+                callers.put(ticket.caller, tickets);
+            }
+            tickets.add(ticket);
+            size++;
+        }
+        
+        void remove(Ticket ticket) {
+            LinkedList<Ticket> tickets = callers.get(ticket.caller);
+            if (tickets == null || !tickets.remove(ticket)) return;
+            size--;
+            if (tickets.isEmpty()) callers.remove(ticket.caller);
+        }
+        
+        Ticket poll() {
+            Iterator<LinkedList<Ticket>> it = callers.values().iterator();
+            if (!it.hasNext()) return null;
+            LinkedList<Ticket> tickets = it.next();
+            Ticket ticket = tickets.removeFirst();
+            it.remove();
+            if (!tickets.isEmpty()) callers.put(ticket.caller, tickets);
+            size--;
+            return ticket;
+        }
+        
+        boolean isEmpty() {
+            return size == 0;
+        }
+        
+        int size() {
+            return size;
+        }
+    }
+}
@@ -19,8 +19,10 @@ package org.avineas.comli.impl;
 import java.io.IOException;
 
 import org.apache.commons.logging.Log;
+import org.avineas.comli.MessageType;
 import org.avineas.io.ReadChannel;
 import org.avineas.io.WriteChannel;
+import org.avineas.io.buffer.BufferPool;
 
 /**
  * A set with static methods that can be used for reading and writing COMLI packets.
@@ -31,13 +33,24 @@ import org.avineas.io.WriteChannel;
  * @since 24-sep-2007
  */
 public class LinkHandler {
-    private static final int MAXSIZE = 100;
+    /** The offset of the packet in a buffer passed to {@link #write(WriteChannel, byte[], int, Log)}. */
+    public static final int PACKETOFFSET = 1;
+    /** The size of the buffers passed to the write and read methods. */
+    public static final int BUFFERSIZE = 2 * Packet.MAXSIZE;
     private static final byte STX = 0x2;
     private static final byte ETX = 0x3;
     private static final int INTERCHARTIMEOUT = 400;
+    private static final BufferPool pool = BufferPool.getDefault();
+    private static final ThreadLocal<byte[]> character = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1];
+        }
+    };
     
     private static void print(Log logger, String prefix, byte[] contents,
             int offset, int length) {
+        if (!logger.isInfoEnabled()) return;
         StringBuffer buffer = new StringBuffer(prefix);
         for (int cnt = 0; cnt < length; cnt++) {
             int thisByte = contents[cnt + offset] & 0xff;
@@ -55,9 +68,29 @@ public class LinkHandler {
      */
     public static void write(WriteChannel out, Packet packet,
             Log logger) throws IOException {
-        byte[] data = new byte[MAXSIZE];
+        byte[] data = pool.acquire(BUFFERSIZE);
+        try {
+            write(out, data, packet.getBytes(data, PACKETOFFSET), logger);
+        } finally {
+            pool.release(data);
+        }
+    }
+    
+    /**
+     * Write a packet that is already present in a buffer, like one built with a 
+     * {@link PacketBuilder}. The framing is added in the buffer itself.
+     * 
+     * @param out The output stream to write over
+     * @param data The buffer of {@link #BUFFERSIZE} bytes with the packet at
+     * offset {@link #PACKETOFFSET}
+     * @param size The size of the packet
+     * @param logger The logger to use for debug messages
+     * @throws IOException In case of IO errors
+     */
+    public static void write(WriteChannel out, byte[] data, int size, 
+            Log logger) throws IOException {
         data[0] = STX;
-        int offset = packet.getBytes(data, 1) + 1;
+        int offset = size + PACKETOFFSET;
         data[offset++] = ETX;
         int bcc = 0;
         for (int cnt = 1; cnt < offset; cnt++) {
@@ -82,7 +115,7 @@ public class LinkHandler {
     private static int read(ReadChannel channel, byte[] buffer, int offset, int length, 
             long timeout) {
         int cnt;
-        byte[] charb = new byte[1];
+        byte[] charb = character.get();
         for (cnt = 0; cnt < length; cnt++) {
             int size = channel.read(charb, 0, timeout);
             if (size < 0) return -1;
@@ -103,68 +136,88 @@ public class LinkHandler {
      */
     public static Packet read(ReadChannel in, long timeout, 
             Log logger) throws IOException {
-        Packet packet = null;
+        byte[] data = pool.acquire(BUFFERSIZE);
+        try {
+            PacketView view = new PacketView();
+            if (!read(in, timeout, logger, data, view)) return null;
+            return view.toPacket();
+        } finally {
+            pool.release(data);
+        }
+    }
+    
+    /**
+     * Read a packet from the remote party into a buffer of the caller, without
+     * allocating any objects.
+     * 
+     * @param in The input stream to read from
+     * @param timeout The time to wait for a message to appear
+     * @param logger The logger to use for debug messages
+     * @param data The buffer to read into, of {@link #BUFFERSIZE} bytes
+     * @param view The view that is pointed to the packet read
+     * @return True if a packet was read, false in case of a time out
+     * @throws IOException In case of protocol failures
+     */
+    public static boolean read(ReadChannel in, long timeout, 
+            Log logger, byte[] data, PacketView view) throws IOException {
         int number;
-        byte[] firstByte = new byte[1];
-        while ((number = read(in, firstByte, 0, 1, timeout)) > 0 && firstByte[0] != STX) {
+        while ((number = read(in, data, 0, 1, timeout)) > 0 && data[0] != STX) {
             logger.warn("received spurious byte " + 
-                    Integer.toHexString(firstByte[0] & 0xff));
+                    Integer.toHexString(data[0] & 0xff));
         }
         if (number < 0) {
             throw new IOException("end of stream while reading channel");
         }
-        if (number > 0) {
-            // Read the header away.
-            byte[] data = new byte[2 * Packet.MAXSIZE];
-            if (read(in, data, 0, Packet.HEADERSIZE, INTERCHARTIMEOUT) == Packet.HEADERSIZE) {
-                int offset = Packet.HEADERSIZE;
-                packet = new Packet(data, 0, offset);
-                // There are three types of packets:
-                // - Request type. Consists of address + quantity.
-                // - Transfer type. Consists of address + quantity + data.
-                // - Acknowledgment. Consists of single ACK.
-                // This means that after we checked for an acknowledgment
-                // type, we just know the size.
-                int remaining;
-                if (Packet.isAck(packet.getType())) {
-                    remaining = 3;
-                }
-                else {
-                    // Need to get the address and the size.
-                    if (read(in, data, Packet.HEADERSIZE,  AddressContents.HEADERSIZE, 
-                            INTERCHARTIMEOUT) == AddressContents.HEADERSIZE) {
-                        offset += AddressContents.HEADERSIZE;
-                        AddressContents contents = new AddressContents(data, 
-                            Packet.HEADERSIZE, AddressContents.HEADERSIZE);
-                        int dataSize = contents.getCount();
-                        if (Packet.isRequest(packet.getType()))
-                            remaining = 2;
-                        else
-                            remaining = dataSize + 2;
-                    }
-                    else
-                        throw new IOException("unexpected timeout while reading packet");
-                }
-                if (read(in, data, offset, remaining, INTERCHARTIMEOUT) == remaining) {
-                    // Check the last bytes.
-                    print(logger, " <-  " + STX, data, 0, offset + remaining);
-                    if (data[offset + remaining - 2] != ETX) {
-                        // Indicate failure.
-                        throw new IOException("no ETX found at end of message");
-                    }
-                    int bcc = 0;
-                    for (int cnt = 0; cnt < offset + remaining; cnt++) {
-                        bcc ^= data[cnt];
-                    }
-                    if (bcc != 0) {
-                        throw new IOException("BCC incorrect in packet");
-                    }
-                    packet = new Packet(data, 0, offset + remaining - 2);
-                }
+        if (number == 0) return false;
+        // Read the header away.
+        if (read(in, data, 0, Packet.HEADERSIZE, INTERCHARTIMEOUT) != Packet.HEADERSIZE) 
+            return false;
+        int offset = Packet.HEADERSIZE;
+        view.wrap(data, 0, offset);
+        // There are three types of packets:
+        // - Request type. Consists of address + quantity.
+        // - Transfer type. Consists of address + quantity + data.
+        // - Acknowledgment. Consists of single ACK.
+        // This means that after we checked for an acknowledgment
+        // type, we just know the size.
+        int remaining;
+        MessageType type = view.getMessageType();
+        if (type.isAck()) {
+            remaining = 3;
+        }
+        else {
+            // Need to get the address and the size.
+            if (read(in, data, Packet.HEADERSIZE,  AddressContents.HEADERSIZE, 
+                    INTERCHARTIMEOUT) == AddressContents.HEADERSIZE) {
+                offset += AddressContents.HEADERSIZE;
+                view.wrap(data, 0, offset);
+                if (type.isRequest())
+                    remaining = 2;
                 else
-                    throw new IOException("unexpected timeout while reading remainder of packet");
+                    remaining = view.getCount() + 2;
+            }
+            else
+                throw new IOException("unexpected timeout while reading packet");
+        }
+        if (offset + remaining > data.length)
+            throw new IOException("packet of " + (offset + remaining) + " bytes is too large");
+        if (read(in, data, offset, remaining, INTERCHARTIMEOUT) == remaining) {
+            // Check the last bytes.
+            print(logger, " <-  " + STX, data, 0, offset + remaining);
+            if (data[offset + remaining - 2] != ETX) {
+                // Indicate failure.
+                throw new IOException("no ETX found at end of message");
+            }
+            int bcc = 0;
+            for (int cnt = 0; cnt < offset + remaining; cnt++) {
+                bcc ^= data[cnt];
+            }
+            if (bcc != 0) {
+                throw new IOException("BCC incorrect in packet");
             }
+            view.wrap(data, 0, offset + remaining - 2);
+            return true;
         }
-        return packet;
+        throw new IOException("unexpected timeout while reading remainder of packet");
     }
-}
\ No newline at end of file
+}
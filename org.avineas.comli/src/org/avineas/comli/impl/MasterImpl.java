@@ -19,20 +19,40 @@ package org.avineas.comli.impl;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.avineas.comli.Master;
+import org.avineas.comli.MessageType;
 import org.avineas.io.Channel;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
 
 /**
  * COMLI master. Takes care of sending and receiving data from/to slaves that are
- * connected to the same channel.
+ * connected to the same channel. Packets are built and read in buffers owned by
+ * the master, so no objects are allocated per round trip.
+ * <br/>
+ * The master can be shared by many threads. Round trips are serialized by an arbiter
+ * that gives transfers priority over requests and serves the waiting callers in turn. By
+ * default every thread is a caller of its own; threads that act for the same client can share
+ * a caller via {@link #getCaller(Object)}, so a client with many threads gets no more turns than
+ * a client with one.
+ * The statistics count the requests as reads and the transfers as writes, next to the
+ * failed round trips and response time outs. The extras contain the histograms of the
+ * time, in us, transfers and requests waited for the link and the number of waiting callers.
  * 
  * @author Arie van Wijngaarden
  */
-public class MasterImpl implements Master {
+public class MasterImpl implements Master, StatisticsProvider {
     private static Log logger = LogFactory.getLog(MasterImpl.class);
     private Channel channel;
     private long responseTimeout;
     private int tries = 3;
     private byte stamp = 0x30;
+    private byte[] out = new byte[LinkHandler.BUFFERSIZE];
+    private byte[] in = new byte[LinkHandler.BUFFERSIZE];
+    private PacketBuilder builder = new PacketBuilder();
+    private PacketView response = new PacketView();
+    private LinkArbiter arbiter = new LinkArbiter();
+    private SimpleStatistics statistics = new SimpleStatistics(0, 0);
     
     /**
      * Create a COMLI master part from a channel and a response timeout
@@ -43,47 +63,52 @@ public class MasterImpl implements Master {
     public MasterImpl(Channel channel, long timeout) {
         this.channel = channel;
         responseTimeout = timeout;
+        statistics.setExtra("transferWait", arbiter.getTransferWaits());
+        statistics.setExtra("requestWait", arbiter.getRequestWaits());
     }
     
-    private Packet send(Packet packet) {
-        Packet response = null;
+    private boolean send(int size, byte packetStamp, int destination) {
         int cnt;
         for (cnt = 0; cnt < tries; cnt++) {
             try {
-                LinkHandler.write(channel, packet, logger);
+                LinkHandler.write(channel, out, size, logger);
                 // Wait for the reply.
-                response = LinkHandler.read(channel, responseTimeout, logger);
-                if (response == null) {
+                if (!LinkHandler.read(channel, responseTimeout, logger, in, response)) {
                     logger.warn("time-out in reading response from slave");
+                    synchronized (statistics) {
+                        statistics.timeout();
+                    }
                 }
                 else if (response.getDestination() != 0) {
                     throw new Exception("destination in response packet is not the master");
                 }
-                else if (response.getStamp() != packet.getStamp()) {
+                else if (response.getStamp() != packetStamp) {
                     throw new Exception("stamp mismatch in slave reply");
                 }
                 else 
-                    break;
+                    return true;
             } catch (Exception exc) {
                 logger.error("failure performing round-trip to slave", exc);
             }
         }
-        if (cnt >= tries)
-        	logger.error("could not execute round-trip to slave " + packet.getDestination());
-        return response;
+        logger.error("could not execute round-trip to slave " + destination);
+        synchronized (statistics) {
+            statistics.error();
+        }
+        return false;
     }
 
-    private Packet doTrip(int destination, byte type, int startAddress, int count, 
+    private boolean doTrip(int destination, byte type, int startAddress, int count, 
             byte[] contents, int offset, int size) { 
-        AddressContents values = new AddressContents(startAddress, count);
+        builder.wrap(out, LinkHandler.PACKETOFFSET).header(destination, stamp, type)
+            .address(startAddress, count);
         if (contents != null)
-            values.setData(contents, offset, size);
-        Packet packet = new Packet(destination, stamp, type, values.getBytes());
+            builder.data(contents, offset, size);
+        byte packetStamp = stamp;
         stamp++;
         if (stamp > 0x32)
             stamp = 0x31;
-        Packet response = send(packet);
-        return response;
+        return send(builder.getSize(), packetStamp, destination);
     }
         
     /**
@@ -98,15 +123,48 @@ public class MasterImpl implements Master {
      * @return Indication whether the transfer was successful
      */
     @Override
-    public boolean transfer(int destination, byte type, int startAddress, byte[] contents, 
-            int offset, int size) {
-        if (!Packet.isTransfer(type)) {
+    public boolean transfer(int destination, byte type, int startAddress, 
+            byte[] contents, int offset, int size) {
+        return transfer(Thread.currentThread(), destination, type, startAddress, contents, 
+                offset, size);
+    }
+    
+    boolean transfer(Object caller, int destination, byte type, int startAddress, 
+            byte[] contents, int offset, int size) {
+        MessageType messageType = MessageType.get(type);
+        if (!messageType.isTransfer()) {
             throw new RuntimeException("(bugcheck): " + type + " is not a transfer type");
         }
-        Packet response = doTrip(destination, type, startAddress, size, contents, offset, size);
-        if (response == null) return false;
-        if (!Packet.isAck(response.getType())) {
-            logger.error("no ack response received on transfer");
+        if (!arbiter.acquire(true, caller)) return false;
+        try {
+            synchronized (statistics) {
+                statistics.written();
+            }
+            if (!doTrip(destination, type, startAddress, size, contents, offset, size)) return false;
+            if (!messageType.isResponse(response.getType())) {
+                logger.error("no ack response received on transfer");
+                return false;
+            }
+            return true;
+        } finally {
+            arbiter.release();
+        }
+    }
+    
+    /**
+     * Perform a request and leave the response in the response view. Must be called
+     * with the link acquired.
+     * 
+     * @return Indication whether a transfer was received
+     */
+    private boolean doRequest(int destination, MessageType messageType, int startAddress, int size) {
+        synchronized (statistics) {
+            statistics.read();
+        }
+        byte type = messageType.getCode();
+        if (!doTrip(destination, type, startAddress, size, null, 0, 0)) return false;
+        if (!messageType.isResponse(response.getType()) || !response.hasAddress()) {
+            logger.error("no matching transfer type received on " + messageType);
             return false;
         }
         return true;
@@ -123,18 +181,99 @@ public class MasterImpl implements Master {
      */
     @Override
     public byte[] request(int destination, byte type, int startAddress, int size) {
-        if (!Packet.isRequest(type)) {
+        return request(Thread.currentThread(), destination, type, startAddress, size);
+    }
+    
+    byte[] request(Object caller, int destination, byte type, int startAddress, int size) {
+        MessageType messageType = checkRequest(type);
+        if (!arbiter.acquire(false, caller)) return null;
+        try {
+            if (!doRequest(destination, messageType, startAddress, size)) return null;
+            byte[] data = new byte[response.getDataSize()];
+            response.getData(data, 0);
+            return data;
+        } finally {
+            arbiter.release();
+        }
+    }
+    
+    private static MessageType checkRequest(byte type) {
+        MessageType messageType = MessageType.get(type);
+        if (!messageType.isRequest()) {
             throw new RuntimeException("(bugcheck): " + Integer.toHexString(type) + 
                     " is not a request");
         }
-        Packet response = doTrip(destination, type, startAddress, size, null, 0, 0);
-        if (response == null) return null;
-        if (!Packet.isTransfer(response.getType())) {
-            logger.error("no transfer type received on request");
-            return null;
+        return messageType;
+    }
+    
+    /**
+     * Request data from a slave into a buffer.
+     * 
+     * @param destination The destination/slave number
+     * @param type The type of the message
+     * @param startAddress The start address
+     * @param size The size to request
+     * @param data The buffer to store the received data in
+     * @param offset The offset in the buffer
+     * @return The number of bytes received or -1 if something went wrong
+     */
+    @Override
+    public int request(int destination, byte type, int startAddress, int size, 
+            byte[] data, int offset) {
+        return request(Thread.currentThread(), destination, type, startAddress, size, 
+                data, offset);
+    }
+    
+    int request(Object caller, int destination, byte type, int startAddress, int size, 
+            byte[] data, int offset) {
+        MessageType messageType = checkRequest(type);
+        if (!arbiter.acquire(false, caller)) return -1;
+        try {
+            if (!doRequest(destination, messageType, startAddress, size)) return -1;
+            if (response.getDataSize() > data.length - offset) {
+                logger.error("response of " + response.getDataSize() + " bytes does not fit");
+                return -1;
+            }
+            return response.getData(data, offset);
+        } finally {
+            arbiter.release();
         }
-        AddressContents contents = new AddressContents(response.getContents());
-        return contents.getData();
+    }
+    
+    /**
+     * Get a view of this master for a specific caller. The transactions of all threads that
+     * use the view wait behind each other for the link and take turns with the other callers.
+     * 
+     * @param caller The key of the caller, like a client id. Views with equal keys
+     * are the same caller
+     * @return The master to use for the caller
+     */
+    public Master getCaller(final Object caller) {
+        return new Master() {
+            @Override
+            public boolean transfer(int destination, byte type, int startAddress, 
+                    byte[] contents, int offset, int size) {
+                return MasterImpl.this.transfer(caller, destination, type, startAddress, 
+                        contents, offset, size);
+            }
+            
+            @Override
+            public byte[] request(int destination, byte type, int startAddress, int size) {
+                return MasterImpl.this.request(caller, destination, type, startAddress, size);
+            }
+            
+            @Override
+            public int request(int destination, byte type, int startAddress, int size, 
+                    byte[] data, int offset) {
+                return MasterImpl.this.request(caller, destination, type, startAddress, size, 
+                        data, offset);
+            }
+            
+            @Override
+            public String toString() {
+                return MasterImpl.this + " for " + caller;
+            }
+        };
     }
     
     /**
@@ -146,4 +285,30 @@ public class MasterImpl implements Master {
     public void setTries(int tries) {
         this.tries = tries;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Set the number of transfers that may be done in a row while requests are waiting
+     * for the link.
+     * 
+     * @param maxTransferRun The number of transfers, defaults to 8
+     */
+    public void setMaxTransferRun(int maxTransferRun) {
+        arbiter.setMaxTransferRun(maxTransferRun);
+    }
+
+    @Override
+    public Statistics getStatistics() {
+        synchronized (statistics) {
+            statistics.setExtra("waiting", arbiter.getWaiting());
+            return statistics;
+        }
+    }
+
+    @Override
+    public void resetCounters() {
+        synchronized (statistics) {
+            statistics.reset();
+        }
+        arbiter.resetCounters();
+    }
+}
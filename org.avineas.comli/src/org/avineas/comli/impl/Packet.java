@@ -17,25 +17,29 @@
 package org.avineas.comli.impl;
 
 import org.avineas.comli.Coder;
+import org.avineas.comli.MessageType;
 
 /**
  * Abstraction of a COMLI packet as received at datalink
  * level, meaning: destination, stamp, message type and
- * contents.
+ * contents. Packets own a copy of their data; for handling packets
+ * without copying, see {@link PacketView} and {@link PacketBuilder}.
  * 
  * @author A. van Wijngaarden
  * @since 24-sep-2007
  */
 public class Packet {
     /** Acknowledgment packet. */
-    public static final byte ACKTYPE = 0x31;
+    public static final byte ACKTYPE = MessageType.ACK;
     public static final byte ACK = 0x6;
     public static final int MAXSIZE = 74;
-    private static final int DESTOFFSET = 0;
-    private static final int STAMPOFFSET = 2;
-    private static final int TYPEOFFSET = 3;
-    private static final int CONTENTSOFFSET = 4;
+    static final int DESTOFFSET = 0;
+    static final int STAMPOFFSET = 2;
+    static final int TYPEOFFSET = 3;
+    static final int CONTENTSOFFSET = 4;
     public static final int HEADERSIZE = CONTENTSOFFSET;
+    /** The maximum size of the data of a request or transfer. */
+    public static final int MAXDATASIZE = MAXSIZE - HEADERSIZE - AddressContents.HEADERSIZE;
     
     protected byte[] contents = new byte[MAXSIZE];
     protected int size = HEADERSIZE;
@@ -94,8 +98,7 @@ public class Packet {
      * Set the destination of this packet. Destination 0 is the master.
      */
     public void setDestination(int destination) {
-        byte[] dest = Coder.toHexBytes(destination, 2);
-        System.arraycopy(dest, 0, contents, DESTOFFSET, 2);
+        Coder.toHexBytes(destination, 2, contents, DESTOFFSET);
     }
 
     /**
@@ -168,7 +171,7 @@ public class Packet {
      * @return True if this packet type is an ack
      */
     public static boolean isAck(byte type) {
-        return type == ACKTYPE;
+        return MessageType.get(type).isAck();
     }
     
     /**
@@ -178,9 +181,7 @@ public class Packet {
      * @return True if this type is a request
      */
     public static boolean isRequest(byte type) {
-        byte[] data = new byte[]{type};
-        String strValue = new String(data);
-        return "24579:<BEGIKLOQSUWZ]^".contains(strValue);
+        return MessageType.get(type).isRequest();
     }
     
     /**
@@ -190,6 +191,6 @@ public class Packet {
      * @return True if this packet type is a response
      */
     public static boolean isTransfer(byte type) {
-        return !isAck(type) && !isRequest(type);
+        return MessageType.get(type).isTransfer();
     }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import org.avineas.comli.Coder;
+
+/**
+ * Builder of COMLI packets that encodes directly into a buffer owned by the caller. The
+ * header must be set first, followed by either the address (with optional data) or the raw
+ * contents. A builder can be reused for the next packet by wrapping a buffer again.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class PacketBuilder {
+    private byte[] buffer;
+    private int offset;
+    private int size;
+    
+    /**
+     * Start building a packet into a buffer. The buffer must have room for 
+     * {@link Packet#MAXSIZE} bytes after the offset.
+     * 
+     * @param buffer The buffer to build the packet in
+     * @param offset The offset in the buffer where the packet starts
+     * @return This builder
+     */
+    public PacketBuilder wrap(byte[] buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.size = Packet.HEADERSIZE;
+        return this;
+    }
+    
+    /**
+     * Set the header of the packet.
+     * 
+     * @param destination The destination, 0 for the master
+     * @param stamp The stamp
+     * @param type The message type
+     * @return This builder
+     */
+    public PacketBuilder header(int destination, byte stamp, byte type) {
+        Coder.toHexBytes(destination, 2, buffer, offset + Packet.DESTOFFSET);
+        buffer[offset + Packet.STAMPOFFSET] = stamp;
+        buffer[offset + Packet.TYPEOFFSET] = type;
+        return this;
+    }
+    
+    /**
+     * Set the address and quantity of a request or transfer.
+     * 
+     * @param address The start address
+     * @param count The quantity
+     * @return This builder
+     */
+    public PacketBuilder address(int address, int count) {
+        int contents = offset + Packet.CONTENTSOFFSET;
+        Coder.toHexBytes(address, AddressContents.ADDRESSSIZE, buffer, 
+                contents + AddressContents.ADDRESSOFFSET);
+        Coder.toHexBytes(count, AddressContents.COUNTSIZE, buffer, 
+                contents + AddressContents.COUNTOFFSET);
+        size = Packet.HEADERSIZE + AddressContents.HEADERSIZE;
+        return this;
+    }
+    
+    /**
+     * Set the data of a transfer. Must be called after {@link #address(int, int)}, the
+     * quantity is set to the size of the data.
+     * 
+     * @param data The buffer with the data
+     * @param off The offset of the data in the buffer
+     * @param length The size of the data
+     * @return This builder
+     */
+    public PacketBuilder data(byte[] data, int off, int length) {
+        int contents = offset + Packet.CONTENTSOFFSET;
+        Coder.toHexBytes(length, AddressContents.COUNTSIZE, buffer, 
+                contents + AddressContents.COUNTOFFSET);
+        System.arraycopy(data, off, buffer, contents + AddressContents.DATAOFFSET, length);
+        size = Packet.HEADERSIZE + AddressContents.HEADERSIZE + length;
+        return this;
+    }
+    
+    /**
+     * Set the raw contents of the packet, like for an acknowledgment.
+     * 
+     * @param data The buffer with the contents
+     * @param off The offset of the contents in the buffer
+     * @param length The size of the contents
+     * @return This builder
+     */
+    public PacketBuilder contents(byte[] data, int off, int length) {
+        System.arraycopy(data, off, buffer, offset + Packet.CONTENTSOFFSET, length);
+        size = Packet.HEADERSIZE + length;
+        return this;
+    }
+    
+    /**
+     * Get the size of the packet built.
+     * 
+     * @return The size in bytes, without framing
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import org.avineas.comli.Coder;
+import org.avineas.comli.MessageType;
+
+/**
+ * Flyweight view of a COMLI packet in a buffer owned by the caller. Nothing is copied: the
+ * fields are decoded from the buffer when they are asked for. A view can be pointed to
+ * another packet with {@link #wrap(byte[], int, int)}, so a single view can be used for
+ * all packets read over a link. The view is only valid as long as the buffer is not reused.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class PacketView {
+    private byte[] buffer;
+    private int offset;
+    private int size;
+    
+    /**
+     * Point the view to a packet.
+     * 
+     * @param buffer The buffer containing the packet
+     * @param offset The offset of the packet in the buffer
+     * @param size The size of the packet, without framing
+     * @return This view
+     */
+    public PacketView wrap(byte[] buffer, int offset, int size) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.size = size;
+        return this;
+    }
+    
+    public byte[] getBuffer() {
+        return buffer;
+    }
+    
+    public int getOffset() {
+        return offset;
+    }
+    
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Get the destination of the packet. Destination 0 is the master.
+     */
+    public int getDestination() {
+        return Coder.fromHexBytes(buffer, offset + Packet.DESTOFFSET, 2);
+    }
+    
+    public byte getStamp() {
+        return buffer[offset + Packet.STAMPOFFSET];
+    }
+    
+    public byte getType() {
+        return buffer[offset + Packet.TYPEOFFSET];
+    }
+    
+    /**
+     * Get the definition of the message type of the packet.
+     */
+    public MessageType getMessageType() {
+        return MessageType.get(getType());
+    }
+    
+    /**
+     * Get the offset of the contents (the payload after the header) in the buffer.
+     */
+    public int getContentsOffset() {
+        return offset + Packet.CONTENTSOFFSET;
+    }
+    
+    /**
+     * Get the size of the contents (the payload after the header).
+     */
+    public int getContentsSize() {
+        return size - Packet.HEADERSIZE;
+    }
+    
+    /**
+     * Check whether the contents of the packet contain an address and quantity. This
+     * is the case for requests and transfers.
+     * 
+     * @return True if the address related fields can be used
+     */
+    public boolean hasAddress() {
+        return !getMessageType().isAck() && getContentsSize() >= AddressContents.HEADERSIZE;
+    }
+    
+    public int getAddress() {
+        return Coder.fromHexBytes(buffer, getContentsOffset() + AddressContents.ADDRESSOFFSET, 
+                AddressContents.ADDRESSSIZE);
+    }
+    
+    /**
+     * Get the quantity, as coded in the packet.
+     */
+    public int getCount() {
+        return Coder.fromHexBytes(buffer, getContentsOffset() + AddressContents.COUNTOFFSET, 
+                AddressContents.COUNTSIZE);
+    }
+    
+    /**
+     * Get the offset of the data of a transfer in the buffer.
+     */
+    public int getDataOffset() {
+        return getContentsOffset() + AddressContents.DATAOFFSET;
+    }
+    
+    /**
+     * Get the size of the data of a transfer.
+     */
+    public int getDataSize() {
+        return getContentsSize() - AddressContents.DATAOFFSET;
+    }
+    
+    /**
+     * Copy the data of a transfer to a buffer.
+     * 
+     * @param out The buffer to copy to
+     * @param off The offset in the buffer
+     * @return The number of bytes copied
+     */
+    public int getData(byte[] out, int off) {
+        int dataSize = getDataSize();
+        System.arraycopy(buffer, getDataOffset(), out, off, dataSize);
+        return dataSize;
+    }
+    
+    /**
+     * Decode the data of a transfer into values, according to the elements of
+     * its message type.
+     * 
+     * @param values The values to fill
+     * @param from The index of the first value to fill
+     * @return The number of values decoded
+     * @see MessageType#decode(byte[], int, int, int[], int)
+     */
+    public int getValues(int[] values, int from) {
+        return getMessageType().decode(buffer, getDataOffset(), getDataSize(), values, from);
+    }
+    
+    /**
+     * Create a stand alone packet of the contents of this view.
+     * 
+     * @return The packet, with a copy of the data
+     */
+    public Packet toPacket() {
+        return new Packet(buffer, offset, size);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.avineas.comli.Master;
+
+/**
+ * Engine that polls scan lists over many COMLI links in parallel. Every link is a master 
+ * with its own list of scans, see {@link PollingLink}. Links are polled by a shared pool of 
+ * threads, with at most one transaction in flight per link, so the total scan rate grows with
+ * the number of links instead of with the number of threads of the callers.
+ * <br/>
+ * Since a transaction blocks its thread until the slave responds, the number of links that
+ * can be busy at the same time is bounded by the number of threads of the engine.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class PollingEngine {
+    private ScheduledThreadPoolExecutor executor;
+    private List<PollingLink> links = new ArrayList<PollingLink>();
+    
+    /**
+     * Construct an engine.
+     * 
+     * @param threads The number of threads, normally the number of links
+     */
+    public PollingEngine(int threads) {
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private int count;
+            
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ComliPoller-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Add a link to poll over.
+     * 
+     * @param name The name of the link
+     * @param master The master of the link
+     * @return The link, to which scans can be added
+     */
+    public synchronized PollingLink addLink(String name, Master master) {
+        PollingLink link = new PollingLink(name, master, executor);
+        links.add(link);
+        return link;
+    }
+    
+    /**
+     * Remove a link. Polling of the link stops after the transaction that is in progress.
+     * 
+     * @param link The link to remove
+     */
+    public synchronized void removeLink(PollingLink link) {
+        links.remove(link);
+        link.close();
+    }
+    
+    public synchronized List<PollingLink> getLinks() {
+        return new ArrayList<PollingLink>(links);
+    }
+    
+    /**
+     * Destroy the engine. Should be wired or called as end handler to stop
+     * the polling.
+     */
+    public void destroy() {
+        for (PollingLink link : getLinks()) {
+            removeLink(link);
+        }
+        executor.shutdownNow();
+    }
+}
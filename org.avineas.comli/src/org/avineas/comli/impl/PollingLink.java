@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.avineas.comli.Master;
+import org.avineas.io.stat.Histogram;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * A (half-duplex) link of a {@link PollingEngine}: a master with the list of scans that are
+ * polled over it. At most one transaction is in flight on a link: the link is a single task
+ * that executes the scan that is due first and then schedules itself again for the next one.
+ * Scans that are late by more than their period are counted as overruns and are not
+ * repeated to catch up.
+ * <br/>
+ * The statistics count the successful scans as reads and the failed ones as errors. The
+ * extras contain the histogram of the cycle time (in us) between the executions of the
+ * scans, the utilization of the link (in percent) and the number of overruns.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class PollingLink implements StatisticsProvider {
+    private static final long MS = 1000000L;
+    private String name;
+    private Master master;
+    private ScheduledExecutorService executor;
+    private List<Scan> scans = new ArrayList<Scan>();
+    private byte[] data = new byte[Packet.MAXDATASIZE];
+    private ScheduledFuture<?> future;
+    private long futureDue;
+    private boolean running;
+    private boolean closed;
+    private SimpleStatistics statistics = new SimpleStatistics(0, null);
+    private Histogram cycleTimes = new Histogram(24);
+    private long busy;
+    private long since = System.nanoTime();
+    private int overruns;
+    private Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+    
+    PollingLink(String name, Master master, ScheduledExecutorService executor) {
+        this.name = name;
+        this.master = master;
+        this.executor = executor;
+        statistics.setExtra("cycleTime", cycleTimes);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public Master getMaster() {
+        return master;
+    }
+    
+    /**
+     * Add a scan to this link. The scan is executed for the first time as soon as possible.
+     * 
+     * @param destination The slave to poll
+     * @param type The request type
+     * @param startAddress The start address
+     * @param size The size to request, at most {@link Packet#MAXDATASIZE} bytes
+     * @param period The time between the executions of the scan, in ms
+     * @param listener The listener for the results
+     * @return The scan added
+     */
+    public Scan addScan(int destination, byte type, int startAddress, int size, long period,
+            Scan.Listener listener) {
+        if (size <= 0 || size > Packet.MAXDATASIZE) 
+            throw new IllegalArgumentException("scan size " + size + " not in 1.." + Packet.MAXDATASIZE);
+        Scan scan = new Scan(this, destination, type, startAddress, size, period, listener);
+        synchronized (this) {
+            scan.setDue(System.nanoTime());
+            scans.add(scan);
+            schedule(0);
+        }
+        return scan;
+    }
+    
+    /**
+     * Remove a scan from this link. An execution that is in progress is finished.
+     * 
+     * @param scan The scan to remove
+     */
+    public synchronized void removeScan(Scan scan) {
+        scans.remove(scan);
+    }
+    
+    public synchronized List<Scan> getScans() {
+        return new ArrayList<Scan>(scans);
+    }
+    
+    /**
+     * Schedule the link to run after a delay. If it is already scheduled for a later time,
+     * that is cancelled, so a scan that is due earlier isn't held up.
+     * 
+     * @param delay The delay, in ns
+     */
+    private void schedule(long delay) {
+        if (running || closed || scans.isEmpty()) return;
+        long due = System.nanoTime() + delay;
+        if (future != null) {
+            if (due - futureDue >= 0) return;
+            // If it cannot be cancelled, it is starting and picks the scan due first.
+            if (!future.cancel(false)) return;
+        }
+        futureDue = due;
+        future = executor.schedule(task, delay, TimeUnit.NANOSECONDS);
+    }
+    
+    void poll() {
+        Scan scan = null;
+        long now = System.nanoTime();
+        synchronized (this) {
+            future = null;
+            for (Scan candidate : scans) {
+                if (scan == null || candidate.getDue() - scan.getDue() < 0) scan = candidate;
+            }
+            if (scan == null || closed) return;
+            if (scan.getDue() - now > 0) {
+                schedule(scan.getDue() - now);
+                return;
+            }
+            // Mark the link running, so no other task is started while we are busy.
+            running = true;
+            long period = scan.getPeriod() * MS;
+            long due = scan.getDue() + period;
+            if (due - now < 0) {
+                overruns++;
+                due = now + period;
+            }
+            scan.setDue(due);
+            if (scan.getLastStart() != 0) cycleTimes.add((now - scan.getLastStart()) / 1000);
+            scan.setLastStart(now);
+        }
+        int size = -1;
+        try {
+            size = master.request(scan.getDestination(), scan.getType(), scan.getStartAddress(), 
+                scan.getSize(), data, 0);
+        } catch (RuntimeException exc) {
+            size = -1;
+        }
+        synchronized (this) {
+            busy += System.nanoTime() - now;
+            if (size < 0) statistics.error();
+            else statistics.read();
+        }
+        try {
+            if (size < 0) scan.getListener().failed(scan);
+            else scan.getListener().scanned(scan, data, size);
+        } catch (Exception exc) {}
+        synchronized (this) {
+            running = false;
+            schedule(0);
+        }
+    }
+    
+    /**
+     * Get the fraction of the time the link was busy with transactions, since the 
+     * creation or the last reset of the counters.
+     * 
+     * @return The utilization, in percent
+     */
+    public synchronized double getUtilization() {
+        long elapsed = System.nanoTime() - since;
+        return (elapsed <= 0) ? 0 : (100.0 * busy) / elapsed;
+    }
+    
+    synchronized void close() {
+        closed = true;
+        scans.clear();
+        if (future != null) future.cancel(false);
+    }
+
+    @Override
+    public synchronized Statistics getStatistics() {
+        statistics.setExtra("utilization", getUtilization());
+        statistics.setExtra("overruns", overruns);
+        return statistics;
+    }
+
+    @Override
+    public synchronized void resetCounters() {
+        statistics.reset();
+        cycleTimes.reset();
+        busy = 0;
+        overruns = 0;
+        since = System.nanoTime();
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
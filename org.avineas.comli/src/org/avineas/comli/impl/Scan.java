@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.comli.impl;
+
+/**
+ * A request that is polled periodically over a link of a {@link PollingEngine}. The
+ * data received is passed to the listener of the scan.
+ * 
+ * @author A. van Wijngaarden
+ */
+public class Scan {
+    private PollingLink link;
+    private int destination;
+    private byte type;
+    private int startAddress;
+    private int size;
+    private long period;
+    private Listener listener;
+    private long due;
+    private long lastStart;
+    
+    /**
+     * Interface for receiving the results of a scan.
+     */
+    public interface Listener {
+        /**
+         * Called when the scan was executed successfully.
+         * 
+         * @param scan The scan
+         * @param data The data received, only valid during the call
+         * @param size The size of the data
+         */
+        public void scanned(Scan scan, byte[] data, int size);
+        
+        /**
+         * Called when the scan failed, for example because the slave didn't respond.
+         * 
+         * @param scan The scan
+         */
+        public void failed(Scan scan);
+    }
+    
+    Scan(PollingLink link, int destination, byte type, int startAddress, int size, long period, 
+            Listener listener) {
+        this.link = link;
+        this.destination = destination;
+        this.type = type;
+        this.startAddress = startAddress;
+        this.size = size;
+        this.period = period;
+        this.listener = listener;
+    }
+    
+    public PollingLink getLink() {
+        return link;
+    }
+    
+    public int getDestination() {
+        return destination;
+    }
+    
+    public byte getType() {
+        return type;
+    }
+    
+    public int getStartAddress() {
+        return startAddress;
+    }
+    
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Get the time between the executions of this scan.
+     * 
+     * @return The period in ms
+     */
+    public long getPeriod() {
+        return period;
+    }
+    
+    Listener getListener() {
+        return listener;
+    }
+    
+    long getDue() {
+        return due;
+    }
+    
+    void setDue(long due) {
+        this.due = due;
+    }
+    
+    long getLastStart() {
+        return lastStart;
+    }
+    
+    void setLastStart(long lastStart) {
+        this.lastStart = lastStart;
+    }
+    
+    @Override
+    public String toString() {
+        return "scan of " + size + " at " + destination + "/" + startAddress + 
+            " every " + period + " ms";
+    }
+}
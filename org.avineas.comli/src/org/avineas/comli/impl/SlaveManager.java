@@ -18,6 +18,7 @@ package org.avineas.comli.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.avineas.comli.MessageType;
 import org.avineas.comli.Slave;
 import org.avineas.io.Channel;
 
@@ -80,15 +81,23 @@ public class SlaveManager {
             logger.info("slave " + destination + " is not managed, skipped");
             return null;
         }
+        MessageType type = MessageType.get(packet.getType());
+        if (type.isAck()) {
+            logger.info("acknowledgment received by slave, skipped");
+            return null;
+        }
         AddressContents contents = new AddressContents(packet.getContents());
         Packet response = null;
         // Check the message type and delegate.
-        if (Packet.isRequest(packet.getType())) {
+        if (type.isRequest()) {
             // It is a request, should answer with a transfer.
             byte[] toReturn = new byte[contents.getCount()];
             byte reply = slave.handleRequest(packet.getType(), contents.getAddress(),
                 toReturn);
             if (reply != 0) {
+                if (!type.isResponse(reply))
+                    logger.warn("slave " + destination + " answers " + type + 
+                            " with type " + MessageType.get(reply));
                 contents.setData(toReturn, 0, toReturn.length);
                 response = new Packet(0, packet.getStamp(), reply, contents.getBytes());
             }
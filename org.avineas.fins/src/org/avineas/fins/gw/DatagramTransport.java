@@ -0,0 +1,222 @@
+/*
+ * Copyright 2005, the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.fins.gw;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.avineas.io.buffer.BufferPool;
+import org.avineas.io.filter.ImpairmentProfile;
+import org.avineas.io.filter.ImpairmentScheduler;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * UDP transport of the gateway. Datagrams are received one at a time. By default, the
+ * transport blocks on the socket, like a plain datagram socket. With a polling wait strategy,
+ * the socket is non-blocking and is polled before the receiving thread blocks in a selector.
+ * <br/>
+ * For testing, the datagrams can be impaired in both directions, see
+ * {@link #setImpairment(ImpairmentProfile, ImpairmentProfile)}. Impaired incoming datagrams
+ * are passed to the receiver by the impairment thread, but never at the same time as the
+ * datagrams passed by the receiving thread.
+ * 
+ * @author Arie van Wijngaarden
+ */
+class DatagramTransport {
+    private BufferPool pool = BufferPool.getDefault();
+    private DatagramChannel channel;
+    private Selector readSelector;
+    private WaitStrategy strategy;
+    private ImpairmentScheduler outbound;
+    private ImpairmentScheduler inbound;
+    private volatile Receiver receiver;
+    private Object receiveLock = new Object();
+    
+    /**
+     * Interface called for each datagram received.
+     */
+    interface Receiver {
+        /**
+         * Handle a received datagram.
+         * 
+         * @param data The datagram data, only valid during the call
+         * @param size The size of the datagram
+         * @param from The sender of the datagram
+         */
+        void received(byte[] data, int size, InetSocketAddress from);
+    }
+    
+    /**
+     * Open a transport on a local port.
+     * 
+     * @param port The UDP port to bind to
+     * @param strategy The way of waiting for datagrams
+     * @throws IOException In case the port cannot be opened
+     */
+    DatagramTransport(int port, WaitStrategy strategy) throws IOException {
+        this.strategy = strategy;
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().bind(new InetSocketAddress(port));
+            if (!strategy.isBlocking()) {
+                channel.configureBlocking(false);
+                readSelector = Selector.open();
+                channel.register(readSelector, SelectionKey.OP_READ);
+            }
+        } catch (IOException exc) {
+            close();
+            throw exc;
+        }
+    }
+    
+    /**
+     * Impair the datagrams sent and received, to test the behaviour of the protocol on
+     * poor network links.
+     * 
+     * @param out The impairment of the datagrams sent, null for none
+     * @param in The impairment of the datagrams received, null for none
+     */
+    synchronized void setImpairment(ImpairmentProfile out, ImpairmentProfile in) {
+        if (outbound != null) outbound.close();
+        if (inbound != null) inbound.close();
+        outbound = null;
+        inbound = null;
+        int port = getLocalPort();
+        if (out != null) {
+            outbound = new ImpairmentScheduler(out, new ImpairmentScheduler.Delivery() {
+                @Override
+                public void deliver(byte[] data, int size, Object context) {
+                    try {
+                        transmit(data, size, (InetSocketAddress) context);
+                    } catch (IOException exc) {
+                        // Lost, like on any poor link.
+                    }
+                }
+            }, "out-" + port);
+        }
+        if (in != null) {
+            inbound = new ImpairmentScheduler(in, new ImpairmentScheduler.Delivery() {
+                @Override
+                public void deliver(byte[] data, int size, Object context) {
+                    pass(data, size, (InetSocketAddress) context);
+                }
+            }, "in-" + port);
+        }
+    }
+    
+    private synchronized ImpairmentScheduler getOutbound() {
+        return outbound;
+    }
+    
+    private synchronized ImpairmentScheduler getInbound() {
+        return inbound;
+    }
+    
+    int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+    
+    void pass(byte[] data, int size, InetSocketAddress from) {
+        Receiver current = receiver;
+        if (current == null) return;
+        synchronized (receiveLock) {
+            current.received(data, size, from);
+        }
+    }
+    
+    /**
+     * Receive a datagram, polling the socket according to the wait strategy.
+     */
+    private SocketAddress poll(ByteBuffer buffer) throws IOException {
+        for (int cnt = 0; ; cnt++) {
+            SocketAddress from = channel.receive(buffer);
+            if (from != null) return from;
+            if (!strategy.idle(cnt)) break;
+        }
+        readSelector.select();
+        readSelector.selectedKeys().clear();
+        return channel.receive(buffer);
+    }
+    
+    /**
+     * Wait for a datagram and pass it to the receiver.
+     * 
+     * @param receiver The receiver to pass the datagram to
+     * @return The number of datagrams received, 0 or 1
+     * @throws IOException In case of socket errors
+     */
+    int receive(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        byte[] data = pool.acquire(Frame.MAXFRAMESIZE);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            SocketAddress from = (readSelector == null) ? channel.receive(buffer) : poll(buffer);
+            if (from == null) return 0;
+            ImpairmentScheduler impairment = getInbound();
+            if (impairment != null) {
+                impairment.submit(data, buffer.position(), from);
+            }
+            else {
+                pass(data, buffer.position(), (InetSocketAddress) from);
+            }
+            return 1;
+        } finally {
+            pool.release(data);
+        }
+    }
+    
+    /**
+     * Send a datagram.
+     * 
+     * @param data The data to send
+     * @param size The size of the data
+     * @param to The destination
+     * @throws IOException In case the datagram couldn't be sent
+     */
+    void send(byte[] data, int size, InetSocketAddress to) throws IOException {
+        ImpairmentScheduler impairment = getOutbound();
+        if (impairment != null) {
+            impairment.submit(data, size, to);
+            return;
+        }
+        transmit(data, size, to);
+    }
+    
+    void transmit(byte[] data, int size, InetSocketAddress to) throws IOException {
+        // A non-blocking socket doesn't wait for room in the socket buffer.
+        if (channel.send(ByteBuffer.wrap(data, 0, size), to) == 0) 
+            throw new IOException("no room to send datagram to " + to);
+    }
+    
+    /**
+     * Close the transport. A receiving thread blocked in {@link #receive(Receiver)} is
+     * woken up with an exception.
+     */
+    void close() {
+        setImpairment(null, null);
+        try {
+            if (readSelector != null) readSelector.close();
+        } catch (Exception exc) {}
+        try {
+            if (channel != null) channel.close();
+        } catch (Exception exc) {}
+    }
+}
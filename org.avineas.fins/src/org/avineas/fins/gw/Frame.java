@@ -206,6 +206,17 @@ class Frame {
         return dataLength;
     }
     
+    /**
+     * Get this frame into a pre-defined byte array.
+     * 
+     * @param out The buffer to copy the frame in, must be large enough
+     * @return The size of the frame in bytes
+     */
+    public int getBytes(byte[] out) {
+        System.arraycopy(data, 0, out, 0, dataLength);
+        return dataLength;
+    }
+    
     /**
      * Get this frame as byte array.
      */
@@ -16,8 +16,7 @@
 package org.avineas.fins.gw;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
@@ -31,6 +30,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.avineas.fins.Address;
 import org.avineas.fins.Unit;
+import org.avineas.io.buffer.BufferPool;
+import org.avineas.io.filter.ImpairmentProfile;
+import org.avineas.io.helper.WaitStrategy;
 
 /**
  * Class that implements the FINS gateway functionality. It takes care of forwarding
@@ -40,6 +42,13 @@ import org.avineas.fins.Unit;
  * remote nodes. <br/>
  * The local nodes should be configured at boot time as well.
  * <br/>
+ * By default, the gateway blocks on the socket for every datagram. For latency critical
+ * networks the socket can be polled instead, see {@link #setWaitStrategy(WaitStrategy)}.
+ * <br/>
+ * To see how the protocol behaves on poor network links, the datagrams can be impaired
+ * with reproducible latency, loss etc., see
+ * {@link #setImpairment(ImpairmentProfile, ImpairmentProfile)}.
+ * <br/>
  * If debugging for this object is enabled, all datagram frames are printed to the
  * logger. If info is enabled, only the summary is logged
  * 
@@ -48,7 +57,11 @@ import org.avineas.fins.Unit;
  */
 public class Gateway {    
     private Log logger = LogFactory.getLog(Gateway.class);
-    private DatagramSocket channel;
+    private BufferPool pool = BufferPool.getDefault();
+    private DatagramTransport channel;
+    private WaitStrategy strategy = WaitStrategy.BLOCKING;
+    private ImpairmentProfile outbound;
+    private ImpairmentProfile inbound;
     private int tries;
     private long timeout;
     private Map<String, Destination> remoteNodes;
@@ -154,16 +167,54 @@ public class Gateway {
     public synchronized void setPort(int port) throws SocketException {
         if (channel != null) 
             channel.close();
-        channel = new DatagramSocket(port);
+        try {
+            channel = new DatagramTransport(port, strategy);
+        } catch (SocketException exc) {
+            throw exc;
+        } catch (IOException exc) {
+            SocketException toThrow = new SocketException(exc.getMessage());
+            toThrow.initCause(exc);
+            throw toThrow;
+        }
+        if (outbound != null || inbound != null) 
+            channel.setImpairment(outbound, inbound);
+    }
+    
+    /**
+     * Impair the datagrams of this gateway, for testing retries and time outs under
+     * latency, jitter, loss, duplication and reordering. Never use this in production.
+     * 
+     * @param outbound The impairment of the datagrams sent, null for none
+     * @param inbound The impairment of the datagrams received, null for none
+     */
+    public synchronized void setImpairment(ImpairmentProfile outbound, ImpairmentProfile inbound) {
+        this.outbound = outbound;
+        this.inbound = inbound;
+        if (channel != null) 
+            channel.setImpairment(outbound, inbound);
     }
     
-    private void traceDatagram(String prefix, DatagramPacket packet) {
+    /**
+     * Set the way the gateway waits for datagrams. By default, the receiving thread blocks
+     * on the socket. For latency critical networks, a polling strategy can be used that
+     * saves the wake up latency of the operating system at the cost of processor time.
+     * 
+     * @param strategy The wait strategy, defaults to {@link WaitStrategy#BLOCKING}. Is used
+     * for the port set after the call
+     */
+    public synchronized void setWaitStrategy(WaitStrategy strategy) {
+        this.strategy = strategy;
+    }
+    
+    private synchronized DatagramTransport getChannel() {
+        return channel;
+    }
+    
+    private void traceDatagram(String prefix, byte[] data, int size) {
         if (!logger.isDebugEnabled()) return;
         StringBuffer buffer = new StringBuffer(prefix).append(":");
-        byte[] data = packet.getData();
-        int offset = packet.getOffset();
-        for (int cnt = 0; cnt < packet.getLength(); cnt++) {
-            int thisByte = data[cnt + offset] & 0xff;
+        for (int cnt = 0; cnt < size; cnt++) {
+            int thisByte = data[cnt] & 0xff;
             buffer.append(" ").append(Integer.toHexString(thisByte));
         }
         logger.debug(buffer.toString());
@@ -181,56 +232,27 @@ public class Gateway {
         if (channel == null) setPort(9600);
 
         // Initialize the nodes and handling of the packets.
+        final DatagramTransport.Receiver receiver = new DatagramTransport.Receiver() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void received(byte[] data, int size, InetSocketAddress from) {
+                handleDatagram(data, size, from);
+            }
+        };
         thread = new Thread() {
             @SuppressWarnings("synthetic-access")
             @Override
             public void run() {
-                byte[] data = new byte[Frame.MAXFRAMESIZE];
                 logger.info(Gateway.this + " started");
                 for (;;) {
                     try {
                         // Read a datagram from the network
-                        DatagramPacket dpacket = 
-                            new DatagramPacket(data, 0, data.length); 
-                        channel.receive(dpacket);
-                        
-                        // Update the FINS node/gateway information
-                        Destination dest = new Destination(dpacket.getAddress(),
-                                dpacket.getPort());
-                        traceDatagram(dest + " -> " + channel.getLocalPort(), dpacket);
-                        Frame packet = new Frame(data, dpacket.getLength());
-                        Address from = packet.getSource();
-                        setDestination(from.getNodeAsString(), dest);
-
-                        // Handle the packet. It is either forwarded to
-                        // a remote machine or locally handled. 
-                        // Note that there is a possibility that gateways keep
-                        // each other busy with sending data to each other. This
-                        // cannot be prevented here.
-                        Address to = packet.getDestination();
-                        NodeUnit unit = units.get(to.toString());
-                        if (unit != null) {
-                            logger.info("received " + 
-                                    (packet.isReply() ? "reply" : "packet") + 
-                                    " frame from: " + dest + 
-                                    ", for local unit: " + to + " from: " +
-                                    packet.getSource());
-                            Frame reply = unit.handleFrame(packet);
-                            if (reply != null)
-                                send(reply);
-                        }
-                        else {
-                            logger.info("frame for node " + to + 
-                                    " cannot be handled locally, trying forward");
-                            send(packet);
-                        }
+                        getChannel().receive(receiver);
                     }
                     catch (Exception exc) {
                         if (!runDown) {
-                            synchronized (this) {
-                                // Will normally only occur when the port is changed on the fly
-                                logger.error("exception handling frame", exc);
-                            }
+                            // Will normally only occur when the port is changed on the fly
+                            logger.error("exception receiving frames", exc);
                         }
                     }
                     // In case we were shut down, stop
@@ -241,6 +263,45 @@ public class Gateway {
         };
         thread.start();
     }
+    
+    private void handleDatagram(byte[] data, int size, InetSocketAddress from) {
+        try {
+            // Update the FINS node/gateway information
+            Destination dest = new Destination(from.getAddress(), from.getPort());
+            traceDatagram(dest + " -> " + channel.getLocalPort(), data, size);
+            Frame packet = new Frame(data, size);
+            Address source = packet.getSource();
+            setDestination(source.getNodeAsString(), dest);
+
+            // Handle the packet. It is either forwarded to
+            // a remote machine or locally handled. 
+            // Note that there is a possibility that gateways keep
+            // each other busy with sending data to each other. This
+            // cannot be prevented here.
+            Address to = packet.getDestination();
+            NodeUnit unit = units.get(to.toString());
+            if (unit != null) {
+                logger.info("received " + 
+                        (packet.isReply() ? "reply" : "packet") + 
+                        " frame from: " + dest + 
+                        ", for local unit: " + to + " from: " +
+                        packet.getSource());
+                Frame reply = unit.handleFrame(packet);
+                if (reply != null)
+                    send(reply);
+            }
+            else {
+                logger.info("frame for node " + to + 
+                        " cannot be handled locally, trying forward");
+                send(packet);
+            }
+        }
+        catch (Exception exc) {
+            if (!runDown) {
+                logger.error("exception handling frame", exc);
+            }
+        }
+    }
      
     /**
      * Method called by the NodeUnit functionality to actually transmit a FINS frame
@@ -273,11 +334,16 @@ public class Gateway {
             return;
         }
         // OK, got everything correct. Send it to a remote IP/FINS node
-        byte[] data = packet.getBytes();
-        DatagramPacket dpacket = new DatagramPacket(data, data.length, 
-                dest.getAddress(), dest.getPort());
-        traceDatagram(channel.getLocalPort() + " -> " + dest, dpacket);
-        channel.send(dpacket);
+        byte[] data = pool.acquire(Frame.MAXFRAMESIZE);
+        try {
+            int size = packet.getBytes(data);
+            DatagramTransport transport = getChannel();
+            traceDatagram(transport.getLocalPort() + " -> " + dest, data, size);
+            transport.send(data, size, 
+                    new InetSocketAddress(dest.getAddress(), dest.getPort()));
+        } finally {
+            pool.release(data);
+        }
         logger.info("sent " + (packet.isReply() ? "reply" : "packet") + 
                 " frame to destination: " +  dest + ", from unit: " + 
                 packet.getSource() + " to unit: " + 
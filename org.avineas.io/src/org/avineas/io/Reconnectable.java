@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io;
+
+/**
+ * Channel that maintains a connection and that can be asked to re-establish it. Used by
+ * watchdogs that detect a dead link before the channel itself notices it.
+ * 
+ * @author Arie van Wijngaarden
+ */
+public interface Reconnectable {
+	/**
+	 * Drop the current connection. Blocked operations on it fail and the next operation
+	 * establishes a new connection.
+	 */
+	public void reconnect();
+}
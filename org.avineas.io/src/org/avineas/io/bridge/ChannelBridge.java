@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.bridge;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.notify.NotifyingChannel;
+
+/**
+ * Bridge that relays packets between pairs of channels. All relays of a bridge are handled by a
+ * single thread that only runs when a channel has data: the channels notify the bridge, which
+ * then reads the packets available into its buffer and writes them to the other channel. As
+ * such, one thread and one buffer serve many relays, instead of two blocking threads per relay.
+ * <br/>
+ * The channels must be notifying channels that don't block on a read with a 0 timeout. Plain
+ * channels can be wrapped in a {@link org.avineas.io.notify.NotifyingChannelWrapper}.
+ * <br/>
+ * Writes are done on the thread of the bridge as well. A write that blocks, like on a TCP
+ * connection with a full send buffer or while reconnecting, stalls all relays of the bridge until
+ * it returns. Relays whose destinations may block for long should get a bridge of their own.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ChannelBridge implements Closeable {
+	private DelayQueue<Direction> ready = new DelayQueue<Direction>();
+	private Set<Relay> relays = new HashSet<Relay>();
+	private byte[] buffer;
+	private Thread thread;
+
+	/**
+	 * Create a bridge.
+	 *
+	 * @param maxSize The max. size of packets that are relayed
+	 */
+	public ChannelBridge(int maxSize) {
+		this.buffer = new byte[maxSize];
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				relay();
+			}
+		}, "ChannelBridge");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void relay() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				ready.take().forward(buffer);
+			} catch (InterruptedException exc) {
+				break;
+			} catch (Exception exc) {}
+		}
+	}
+
+	/**
+	 * Relay between two channels.
+	 *
+	 * @param first The first channel
+	 * @param second The second channel
+	 * @return The relay. Closing it closes both channels
+	 */
+	public Relay relay(NotifyingChannel first, NotifyingChannel second) {
+		Relay relay = new Relay(this, first, second);
+		synchronized (relays) {
+			relays.add(relay);
+		}
+		return relay;
+	}
+
+	/**
+	 * Get the relays currently active.
+	 *
+	 * @return The relays
+	 */
+	public List<Relay> getRelays() {
+		synchronized (relays) {
+			return new ArrayList<Relay>(relays);
+		}
+	}
+
+	void schedule(Direction direction) {
+		ready.add(direction);
+	}
+
+	void remove(Relay relay) {
+		synchronized (relays) {
+			relays.remove(relay);
+		}
+	}
+
+	/**
+	 * Stop the bridge and close all relays.
+	 */
+	@Override
+	@PreDestroy
+	public void close() {
+		thread.interrupt();
+		for (Relay relay : getRelays()) {
+			try {
+				relay.close();
+			} catch (Exception exc) {}
+		}
+	}
+}
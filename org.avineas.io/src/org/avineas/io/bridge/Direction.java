@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.bridge;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.avineas.io.ReadChannel;
+import org.avineas.io.WriteChannel;
+import org.avineas.io.filter.TokenBucket;
+import org.avineas.io.notify.Notifier.Listener;
+import org.avineas.io.stat.Histogram;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * One direction of a relay. Is scheduled on the bridge when its source has data and forwards
+ * the packets available to its destination. The statistics contain the packets read and
+ * written, the number of bytes forwarded, the number of times the direction was throttled and
+ * a histogram of the throttle delays, in us. Throttling doesn't block the bridge: a throttled
+ * direction is scheduled again when its tokens are available. A read error also doesn't block
+ * the bridge: the direction backs off and tries again later, with a delay that doubles on every
+ * next error, up to a second.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class Direction implements Delayed, Listener, StatisticsProvider {
+	private static final int MAXPACKETS = 16;
+	private static final long MINBACKOFF = 1000000L;
+	private static final long MAXBACKOFF = 1000000000L;
+	private ChannelBridge bridge;
+	private ReadChannel source;
+	private WriteChannel destination;
+	private AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile long due;
+	private volatile boolean closed;
+	private volatile Tap tap;
+	private volatile TokenBucket packets;
+	private volatile TokenBucket bytes;
+	private long next;
+	private long backoff;
+	private SimpleStatistics statistics = new SimpleStatistics(0, 0);
+	private Histogram delays = new Histogram(24);
+	private long forwarded;
+	private int throttled;
+
+	Direction(ChannelBridge bridge, ReadChannel source, WriteChannel destination) {
+		this.bridge = bridge;
+		this.source = source;
+		this.destination = destination;
+		// The clock may have any origin, so don't start with a time that lies in its future.
+		this.next = System.nanoTime();
+		statistics.setExtra("throttleDelay", delays);
+		updateExtras();
+	}
+
+	private void updateExtras() {
+		statistics.setExtra("bytes", forwarded);
+		statistics.setExtra("throttled", throttled);
+	}
+
+	void setTap(Tap tap) {
+		this.tap = tap;
+	}
+
+	void setRateLimit(TokenBucket packets, TokenBucket bytes) {
+		this.packets = packets;
+		this.bytes = bytes;
+	}
+
+	@Override
+	public void checkChannel() {
+		schedule(0);
+	}
+
+	/**
+	 * Schedule this direction on the bridge, if not done already.
+	 *
+	 * @param delay The delay, in ns, before the direction may run
+	 */
+	void schedule(long delay) {
+		if (closed) return;
+		if (scheduled.compareAndSet(false, true)) {
+			due = System.nanoTime() + delay;
+			bridge.schedule(this);
+		}
+	}
+
+	/**
+	 * Forward the packets available. Called on the thread of the bridge only.
+	 *
+	 * @param buffer The buffer of the bridge
+	 */
+	void forward(byte[] buffer) {
+		// Notifications from now on schedule this direction again.
+		scheduled.set(false);
+		for (int cnt = 0; cnt < MAXPACKETS && !closed; cnt++) {
+			long now = System.nanoTime();
+			if (next - now > 0) {
+				schedule(next - now);
+				return;
+			}
+			int size = source.read(buffer, 0, 0);
+			if (size == 0) return;
+			if (size < 0) {
+				synchronized (this) {
+					statistics.error();
+				}
+				// A failing source, like a closed one, is not polled in a tight loop.
+				backoff = (backoff == 0) ? MINBACKOFF : Math.min(2 * backoff, MAXBACKOFF);
+				schedule(backoff);
+				return;
+			}
+			backoff = 0;
+			Tap tap = this.tap;
+			if (tap != null) {
+				try {
+					tap.tapped(this, buffer, size);
+				} catch (Exception exc) {}
+			}
+			boolean ok = destination.write(buffer, size) >= 0;
+			synchronized (this) {
+				statistics.read();
+				if (ok) {
+					statistics.written();
+					forwarded += size;
+				}
+				else statistics.error();
+				updateExtras();
+			}
+			long delay = TokenBucket.take(packets, bytes, size);
+			if (delay > 0) {
+				next = now + delay;
+				delays.add(delay / 1000L);
+				synchronized (this) {
+					throttled++;
+					updateExtras();
+				}
+			}
+		}
+		// There may be more, give other directions a turn first.
+		if (!closed) schedule(0);
+	}
+
+	void close() {
+		closed = true;
+	}
+
+	public ReadChannel getSource() {
+		return source;
+	}
+
+	public WriteChannel getDestination() {
+		return destination;
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed other) {
+		long diff = due - ((Direction) other).due;
+		return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+	}
+
+	@Override
+	public synchronized Statistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized void resetCounters() {
+		statistics.reset();
+		delays.reset();
+		forwarded = 0;
+		throttled = 0;
+		updateExtras();
+	}
+
+	@Override
+	public String toString() {
+		return source + " -> " + destination;
+	}
+}
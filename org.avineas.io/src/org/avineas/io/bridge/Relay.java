@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.bridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.avineas.io.filter.TokenBucket;
+import org.avineas.io.notify.NotifyingChannel;
+
+/**
+ * Relay between two channels on a bridge. Packets read from one channel are written to the
+ * other one and vice versa.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class Relay implements Closeable {
+	private ChannelBridge bridge;
+	private NotifyingChannel first;
+	private NotifyingChannel second;
+	private Direction forward;
+	private Direction backward;
+
+	Relay(ChannelBridge bridge, NotifyingChannel first, NotifyingChannel second) {
+		this.bridge = bridge;
+		this.first = first;
+		this.second = second;
+		forward = new Direction(bridge, first, second);
+		backward = new Direction(bridge, second, first);
+		first.notify(forward);
+		second.notify(backward);
+		// Data may have been there before the listeners were added.
+		forward.schedule(0);
+		backward.schedule(0);
+	}
+
+	/**
+	 * Get the direction from the first to the second channel.
+	 *
+	 * @return The forward direction
+	 */
+	public Direction getForward() {
+		return forward;
+	}
+
+	/**
+	 * Get the direction from the second to the first channel.
+	 *
+	 * @return The backward direction
+	 */
+	public Direction getBackward() {
+		return backward;
+	}
+
+	/**
+	 * Set a tap that sees the packets forwarded in both directions.
+	 *
+	 * @param tap The tap, null to remove it
+	 */
+	public void setTap(Tap tap) {
+		forward.setTap(tap);
+		backward.setTap(tap);
+	}
+
+	/**
+	 * Limit the number of bytes per second forwarded in each direction. Up to a second
+	 * worth of bytes may be forwarded at once.
+	 *
+	 * @param rate The rate in bytes per second, 0 for no limit
+	 */
+	public void setThrottle(long rate) {
+		setRateLimit(0, 0, rate, (int) Math.min(rate, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Limit the traffic forwarded in each direction.
+	 *
+	 * @param packetRate The max. number of packets per second, 0 for no limit
+	 * @param packetBurst The number of packets that may be forwarded at once
+	 * @param byteRate The max. number of bytes per second, 0 for no limit
+	 * @param byteBurst The number of bytes that may be forwarded at once
+	 */
+	public void setRateLimit(double packetRate, int packetBurst, double byteRate, int byteBurst) {
+		forward.setRateLimit(createBucket(packetRate, packetBurst), createBucket(byteRate, byteBurst));
+		backward.setRateLimit(createBucket(packetRate, packetBurst), createBucket(byteRate, byteBurst));
+	}
+
+	private static TokenBucket createBucket(double rate, int burst) {
+		return (rate > 0) ? new TokenBucket(rate, burst) : null;
+	}
+
+	/**
+	 * Stop relaying and close both channels.
+	 */
+	@Override
+	public void close() throws IOException {
+		forward.close();
+		backward.close();
+		bridge.remove(this);
+		try {
+			first.close();
+		} finally {
+			second.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return first + " <-> " + second;
+	}
+}
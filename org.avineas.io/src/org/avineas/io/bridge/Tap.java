@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.bridge;
+
+/**
+ * Tap on a relay. Sees all packets that are forwarded.
+ *
+ * @author Arie van Wijngaarden
+ */
+public interface Tap {
+	/**
+	 * Called for every packet forwarded, before it is written. Called on the thread of the
+	 * bridge, so this method must return quickly.
+	 *
+	 * @param direction The direction the packet is forwarded in
+	 * @param data The packet, only valid during the call
+	 * @param size The size of the packet
+	 */
+	public void tapped(Direction direction, byte[] data, int size);
+}
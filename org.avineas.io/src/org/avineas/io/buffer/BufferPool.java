@@ -0,0 +1,277 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Pool of buffers, to prevent allocation of buffers for every packet that is read or written.
+ * Buffers are pooled per size: the buffers handed out are exactly the size requested, so they
+ * can be passed to channels that use the buffer length. Both heap arrays and direct byte buffers
+ * are pooled. Buffers that are not released are simply garbage collected.
+ * <br/>
+ * The number of sizes pooled is limited, so a user that requests many different sizes cannot
+ * make the pool grow without bound. Once the limit is reached, buffers of sizes that are not
+ * pooled yet are simply allocated and left to the garbage collector on release.
+ * <br/>
+ * Releases are always checked cheaply: a buffer of a size that is not pooled is left to the
+ * garbage collector and a buffer that is already free is refused and counted as a bad release. In debug mode, the pool also
+ * remembers where every outstanding buffer was acquired, so leaks and releases of buffers that
+ * were not acquired from the pool can be found. Debug mode is slow and is switched on by calling
+ * {@link #setDebug(boolean)} or by setting the system property "org.avineas.io.buffer.debug"
+ * to true. The statistics show the pool hits and misses.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class BufferPool implements StatisticsProvider {
+	private static final BufferPool DEFAULT = new BufferPool();
+	private static final int MAXCLASSES = 64;
+	private ConcurrentMap<Integer, SizeClass<byte[]>> heap =
+		new ConcurrentHashMap<Integer, SizeClass<byte[]>>();
+	private ConcurrentMap<Integer, SizeClass<ByteBuffer>> direct =
+		new ConcurrentHashMap<Integer, SizeClass<ByteBuffer>>();
+	private volatile boolean debug = Boolean.getBoolean("org.avineas.io.buffer.debug");
+	private Map<Object, Throwable> outstanding = new IdentityHashMap<Object, Throwable>();
+	private AtomicLong badReleases = new AtomicLong();
+	private AtomicLong unpooled = new AtomicLong();
+
+	/**
+	 * Get the pool that is shared by all users.
+	 *
+	 * @return The default pool
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get the size class of heap buffers of a size, creating it if the limit is not reached.
+	 *
+	 * @param size The size of the buffers
+	 * @return The class, or null if the size is not pooled
+	 */
+	private SizeClass<byte[]> getHeapClass(int size) {
+		SizeClass<byte[]> sizeClass = heap.get(size);
+		if (sizeClass == null) {
+			if (heap.size() >= MAXCLASSES) return null;
+			// Arrays compare by identity, so a concurrent map can keep the free ones.
+			Set<byte[]> free = Collections.newSetFromMap(new ConcurrentHashMap<byte[], Boolean>());
+			heap.putIfAbsent(size, new SizeClass<byte[]>(size, free) {
+				@Override
+				protected byte[] allocate(int size) {
+					return new byte[size];
+				}
+			});
+			sizeClass = heap.get(size);
+		}
+		return sizeClass;
+	}
+
+	/**
+	 * Get the size class of direct buffers of a size, creating it if the limit is not reached.
+	 *
+	 * @param size The capacity of the buffers
+	 * @return The class, or null if the size is not pooled
+	 */
+	private SizeClass<ByteBuffer> getDirectClass(int size) {
+		SizeClass<ByteBuffer> sizeClass = direct.get(size);
+		if (sizeClass == null) {
+			if (direct.size() >= MAXCLASSES) return null;
+			// Byte buffers compare by contents, so identity is needed here.
+			Set<ByteBuffer> free = Collections.newSetFromMap(
+				Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+			direct.putIfAbsent(size, new SizeClass<ByteBuffer>(size, free) {
+				@Override
+				protected ByteBuffer allocate(int size) {
+					return ByteBuffer.allocateDirect(size);
+				}
+			});
+			sizeClass = direct.get(size);
+		}
+		return sizeClass;
+	}
+
+	private void acquired(Object buffer) {
+		if (!debug) return;
+		synchronized (outstanding) {
+			outstanding.put(buffer, new Throwable("buffer of " + getSize(buffer) + " bytes acquired"));
+		}
+	}
+
+	private boolean released(Object buffer) {
+		if (!debug) return true;
+		synchronized (outstanding) {
+			if (outstanding.remove(buffer) == null) {
+				badReleases.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int getSize(Object buffer) {
+		return (buffer instanceof byte[]) ? ((byte[]) buffer).length : ((ByteBuffer) buffer).capacity();
+	}
+
+	/**
+	 * Get a heap buffer of a specific size. The contents of the buffer are undefined.
+	 *
+	 * @param size The size of the buffer
+	 * @return The buffer, with exactly the length requested
+	 */
+	public byte[] acquire(int size) {
+		SizeClass<byte[]> sizeClass = getHeapClass(size);
+		byte[] buffer;
+		if (sizeClass == null) {
+			unpooled.incrementAndGet();
+			buffer = new byte[size];
+		}
+		else {
+			buffer = sizeClass.acquire();
+		}
+		acquired(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Give a heap buffer back to the pool. The buffer may not be used anymore by the caller.
+	 * A buffer of a size that is not pooled is not kept, one that is free already is refused.
+	 *
+	 * @param buffer The buffer to release. Null is allowed and ignored
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || !released(buffer)) return;
+		SizeClass<byte[]> sizeClass = heap.get(buffer.length);
+		if (sizeClass != null && !sizeClass.release(buffer)) {
+			badReleases.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get a direct buffer of a specific capacity. The buffer is cleared, its contents are
+	 * undefined.
+	 *
+	 * @param size The capacity of the buffer
+	 * @return The buffer
+	 */
+	public ByteBuffer acquireDirect(int size) {
+		SizeClass<ByteBuffer> sizeClass = getDirectClass(size);
+		ByteBuffer buffer;
+		if (sizeClass == null) {
+			unpooled.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+		else {
+			buffer = sizeClass.acquire();
+		}
+		buffer.clear();
+		acquired(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Give a direct buffer back to the pool. The buffer may not be used anymore by the caller.
+	 * A buffer of a size that is not pooled is not kept, one that is free already is refused.
+	 *
+	 * @param buffer The buffer to release. Null is allowed and ignored
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !released(buffer)) return;
+		SizeClass<ByteBuffer> sizeClass = buffer.isDirect() ? direct.get(buffer.capacity()) : null;
+		if (sizeClass != null && !sizeClass.release(buffer)) {
+			badReleases.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Switch debug mode on or off. Switching it off forgets the outstanding buffers.
+	 *
+	 * @param debug True to keep track of outstanding buffers
+	 */
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+		if (!debug) {
+			synchronized (outstanding) {
+				outstanding.clear();
+			}
+		}
+	}
+
+	/**
+	 * Get the buffers that are currently acquired and not released. Only available in debug mode.
+	 *
+	 * @return The stack traces of the places where the outstanding buffers were acquired
+	 */
+	public List<Throwable> getOutstanding() {
+		synchronized (outstanding) {
+			return new ArrayList<Throwable>(outstanding.values());
+		}
+	}
+
+	@Override
+	public Statistics getStatistics() {
+		SimpleStatistics statistics = new SimpleStatistics(null, null);
+		long hits = 0;
+		long misses = 0;
+		for (SizeClass<byte[]> sizeClass : heap.values()) {
+			hits += sizeClass.getHits();
+			misses += sizeClass.getMisses();
+			statistics.setExtra("heap." + sizeClass.getSize(),
+				sizeClass.getHits() + "/" + sizeClass.getMisses());
+		}
+		for (SizeClass<ByteBuffer> sizeClass : direct.values()) {
+			hits += sizeClass.getHits();
+			misses += sizeClass.getMisses();
+			statistics.setExtra("direct." + sizeClass.getSize(),
+				sizeClass.getHits() + "/" + sizeClass.getMisses());
+		}
+		statistics.setExtra("hits", hits);
+		statistics.setExtra("misses", misses);
+		statistics.setExtra("unpooled", unpooled.get());
+		statistics.setExtra("badReleases", badReleases.get());
+		if (debug) {
+			synchronized (outstanding) {
+				statistics.setExtra("outstanding", outstanding.size());
+			}
+		}
+		return statistics;
+	}
+
+	@Override
+	public void resetCounters() {
+		for (SizeClass<byte[]> sizeClass : heap.values()) {
+			sizeClass.reset();
+		}
+		for (SizeClass<ByteBuffer> sizeClass : direct.values()) {
+			sizeClass.reset();
+		}
+		unpooled.set(0);
+		badReleases.set(0);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.buffer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Free buffers of one size. Buffers are first kept in a small cache of the thread that released
+ * them, so that a thread that acquires and releases buffers doesn't need any synchronization at
+ * all. When that cache is full, buffers go to a global lock-free list that is shared by all
+ * threads. All free buffers are also kept in a set, so a buffer that is released twice is
+ * refused instead of being handed out to two users.
+ *
+ * @author Arie van Wijngaarden
+ */
+abstract class SizeClass<T> {
+	private static final int THREADCACHESIZE = 8;
+	private static final int GLOBALSIZE = 256;
+	private int size;
+	private ThreadLocal<ArrayDeque<T>> cache = new ThreadLocal<ArrayDeque<T>>() {
+		@Override
+		protected ArrayDeque<T> initialValue() {
+			return new ArrayDeque<T>(THREADCACHESIZE);
+		}
+	};
+	private Queue<T> global = new ConcurrentLinkedQueue<T>();
+	private Set<T> free;
+	private AtomicInteger globalCount = new AtomicInteger();
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Construct a size class.
+	 *
+	 * @param size The size of the buffers
+	 * @param free The set to keep the free buffers in. Must compare the buffers by identity
+	 * and be thread safe
+	 */
+	SizeClass(int size, Set<T> free) {
+		this.size = size;
+		this.free = free;
+	}
+
+	/**
+	 * Allocate a new buffer of the size of this class.
+	 *
+	 * @param size The size to allocate
+	 * @return The new buffer
+	 */
+	protected abstract T allocate(int size);
+
+	int getSize() {
+		return size;
+	}
+
+	T acquire() {
+		T buffer = cache.get().poll();
+		if (buffer == null) {
+			buffer = global.poll();
+			if (buffer != null) {
+				globalCount.decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return allocate(size);
+		}
+		free.remove(buffer);
+		hits.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back.
+	 *
+	 * @param buffer The buffer
+	 * @return False if the buffer is refused since it is free already
+	 */
+	boolean release(T buffer) {
+		if (!free.add(buffer)) return false;
+		ArrayDeque<T> local = cache.get();
+		if (local.size() < THREADCACHESIZE) {
+			local.push(buffer);
+		}
+		else if (globalCount.incrementAndGet() <= GLOBALSIZE) {
+			global.offer(buffer);
+		}
+		else {
+			// Pool is full, let the garbage collector have it.
+			globalCount.decrementAndGet();
+			free.remove(buffer);
+		}
+		return true;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	void reset() {
+		hits.set(0);
+		misses.set(0);
+	}
+}
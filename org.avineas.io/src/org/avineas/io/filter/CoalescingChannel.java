@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import org.avineas.io.Channel;
+
+/**
+ * Wrapper around another channel to add write coalescing. Reads are passed to the
+ * wrapped channel as is.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class CoalescingChannel extends CoalescingWriteChannel<Channel> implements Channel {
+	public CoalescingChannel(Channel wrapped, int threshold, long deadline) {
+		super(wrapped, threshold, deadline);
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		return getDelegate().read(data, offset, timeout);
+	}
+}
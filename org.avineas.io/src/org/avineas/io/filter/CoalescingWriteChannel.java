@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.io.IOException;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.WriteChannel;
+import org.avineas.io.helper.CoalescingBuffer;
+import org.avineas.io.stat.Histogram;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Wrapper around a write channel that coalesces small writes into larger ones. Written data is
+ * buffered and passed to the wrapped channel when the buffer is full, when {@link #flush()} is
+ * called or when the oldest buffered data has waited for the configured deadline, whichever
+ * comes first. Only use this on stream oriented channels since packet boundaries are lost.
+ * <br/>
+ * The statistics contain the number of flushes per reason and a histogram of the flushed sizes.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class CoalescingWriteChannel<C extends WriteChannel> implements WriteChannel, StatisticsProvider {
+	private C delegate;
+	private CoalescingBuffer buffer;
+	private boolean closed;
+	private Thread thread;
+	private SimpleStatistics statistics = new SimpleStatistics(null, 0);
+	private Histogram batchSizes = new Histogram(16);
+	private int sizeFlushes;
+	private int deadlineFlushes;
+	private int explicitFlushes;
+
+	/**
+	 * Add write coalescing to a channel.
+	 *
+	 * @param wrapped The channel to write to
+	 * @param threshold The number of bytes that are buffered at most. If this amount is
+	 * reached, the data is flushed
+	 * @param deadline The time, in microseconds, that data may wait in the buffer before it
+	 * is flushed. A value <= 0 means that there is no deadline
+	 */
+	public CoalescingWriteChannel(C wrapped, int threshold, long deadline) {
+		this.delegate = wrapped;
+		this.buffer = new CoalescingBuffer(threshold, deadline) {
+			@Override
+			protected void passed(Reason reason, int length, boolean success) {
+				flushed(reason, length, success);
+			}
+		};
+		statistics.setExtra("batchSizes", batchSizes);
+		updateExtras();
+		if (deadline > 0) {
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flusher();
+				}
+			}, "Coalescing-" + wrapped.toString());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	void flusher() {
+		synchronized (this) {
+			while (!closed) {
+				try {
+					if (buffer.isEmpty()) {
+						this.wait();
+						continue;
+					}
+					long toWait = buffer.getDue() - System.nanoTime();
+					if (toWait > 0) {
+						this.wait(toWait / 1000000L, (int) (toWait % 1000000L));
+						continue;
+					}
+					buffer.pass(delegate, CoalescingBuffer.Reason.DEADLINE);
+				} catch (InterruptedException exc) {
+					break;
+				}
+			}
+		}
+	}
+
+	private void updateExtras() {
+		statistics.setExtra("sizeFlushes", sizeFlushes);
+		statistics.setExtra("deadlineFlushes", deadlineFlushes);
+		statistics.setExtra("explicitFlushes", explicitFlushes);
+	}
+
+	/**
+	 * Count data passed to the wrapped channel. Is called with the lock held.
+	 */
+	void flushed(CoalescingBuffer.Reason reason, int length, boolean success) {
+		switch (reason) {
+		case SIZE:
+			sizeFlushes++;
+			break;
+		case DEADLINE:
+			deadlineFlushes++;
+			break;
+		default:
+			explicitFlushes++;
+		}
+		batchSizes.add(length);
+		if (success) statistics.written();
+		else statistics.error();
+		updateExtras();
+	}
+
+	/**
+	 * Flush the data that is currently buffered to the wrapped channel.
+	 *
+	 * @return True if the data was flushed, false if this or an earlier flush failed
+	 */
+	public synchronized boolean flush() {
+		return buffer.flush(delegate);
+	}
+
+	@Override
+	public synchronized int write(byte[] data, int length) {
+		if (closed) return -1;
+		boolean wasEmpty = buffer.isEmpty();
+		int result = buffer.write(delegate, data, length);
+		// Wake up the flusher for the deadline of newly buffered data.
+		if (wasEmpty && !buffer.isEmpty()) {
+			this.notifyAll();
+		}
+		return result;
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		synchronized (this) {
+			buffer.pass(delegate, CoalescingBuffer.Reason.EXPLICIT);
+			closed = true;
+			this.notifyAll();
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+		delegate.close();
+	}
+
+	@Override
+	public synchronized Statistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized void resetCounters() {
+		statistics.reset();
+		batchSizes.reset();
+		sizeFlushes = 0;
+		deadlineFlushes = 0;
+		explicitFlushes = 0;
+		updateExtras();
+	}
+
+	C getDelegate() {
+		return this.delegate;
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+}
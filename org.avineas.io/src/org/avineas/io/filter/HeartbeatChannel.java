@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.io.IOException;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+import org.avineas.io.Reconnectable;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Wrapper around a channel that detects dead links. A link on which nothing has been received
+ * for the probe time is probed via a protocol specific {@link Probe}, which should cause the
+ * peer to send something. If nothing is received for the dead time, the link is considered dead:
+ * the connection of a {@link Reconnectable} channel is dropped, so it is re-established,
+ * other channels are closed, so blocked and later reads fail. This detects a silently
+ * disappeared peer within seconds instead of the minutes of the TCP retransmission timeout.
+ * <br/>
+ * Only received data counts as proof of life, so the watchdog must be placed below the
+ * reading thread, like below a {@link org.avineas.io.notify.NotifyingChannelWrapper}.
+ * The statistics contain the number of probes and reconnects, failed probes are counted as
+ * errors.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class HeartbeatChannel<C extends Channel> implements Channel, StatisticsProvider {
+	private C delegate;
+	private long probeTime;
+	private long deadTime;
+	private volatile Probe probe;
+	private volatile long lastReceived;
+	private long lastProbe;
+	private boolean dead;
+	private Thread thread;
+	private SimpleStatistics statistics = new SimpleStatistics(null, null);
+	private int probes;
+	private int reconnects;
+
+	/**
+	 * Interface for probing the peer, normally by writing a harmless request.
+	 */
+	public interface Probe {
+		/**
+		 * Probe the peer on a channel.
+		 *
+		 * @param channel The channel to write the probe to. The answer is read by the
+		 * normal readers
+		 * @return True if the probe was sent, false if that failed
+		 */
+		public boolean probe(Channel channel);
+	}
+
+	/**
+	 * Add a watchdog to a channel.
+	 *
+	 * @param wrapped The channel to watch
+	 * @param probeTime The time, in ms, that the channel may be idle before it is probed
+	 * @param deadTime The time, in ms, that the channel may be idle before it is dead
+	 */
+	public HeartbeatChannel(C wrapped, long probeTime, long deadTime) {
+		this.delegate = wrapped;
+		this.probeTime = probeTime;
+		this.deadTime = deadTime;
+		this.lastReceived = System.currentTimeMillis();
+		updateExtras();
+		final long interval = Math.max(10, Math.min(probeTime, deadTime) / 4);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch(interval);
+			}
+		}, "Heartbeat-" + wrapped.toString());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Set the probe for the peer. Without a probe, the link is only declared dead.
+	 *
+	 * @param probe The probe to use
+	 */
+	public void setProbe(Probe probe) {
+		this.probe = probe;
+	}
+
+	void watch(long interval) {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException exc) {
+				break;
+			}
+			long now = System.currentTimeMillis();
+			long idle = now - lastReceived;
+			if (idle >= deadTime) {
+				// A closed channel is not watched anymore.
+				if (!declareDead()) break;
+			}
+			else if (idle >= probeTime && probe != null && now - lastProbe >= probeTime) {
+				lastProbe = now;
+				boolean sent;
+				try {
+					sent = probe.probe(this);
+				} catch (Exception exc) {
+					sent = false;
+				}
+				synchronized (this) {
+					probes++;
+					if (!sent) statistics.error();
+					updateExtras();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handle a dead link: drop the connection, or close the channel if it cannot reconnect.
+	 *
+	 * @return True if the channel reconnects, false if it was closed
+	 */
+	private boolean declareDead() {
+		boolean reconnectable = delegate instanceof Reconnectable;
+		if (reconnectable) {
+			((Reconnectable) delegate).reconnect();
+		}
+		else {
+			try {
+				delegate.close();
+			} catch (Exception exc) {}
+		}
+		synchronized (this) {
+			dead = !reconnectable;
+			reconnects++;
+			updateExtras();
+		}
+		// Give the new connection the full time to show life.
+		lastReceived = System.currentTimeMillis();
+		return reconnectable;
+	}
+
+	private void updateExtras() {
+		statistics.setExtra("probes", probes);
+		statistics.setExtra("reconnects", reconnects);
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		synchronized (this) {
+			if (dead) {
+				dead = false;
+				return -1;
+			}
+		}
+		int size = delegate.read(data, offset, timeout);
+		if (size > 0) {
+			lastReceived = System.currentTimeMillis();
+		}
+		return size;
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		return delegate.write(data, length);
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		thread.interrupt();
+		delegate.close();
+	}
+
+	@Override
+	public synchronized Statistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized void resetCounters() {
+		statistics.reset();
+		probes = 0;
+		reconnects = 0;
+		updateExtras();
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+}
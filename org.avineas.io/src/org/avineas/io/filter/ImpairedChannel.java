@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+
+/**
+ * Wrapper around a channel that impairs the traffic like a poor network link does, for testing
+ * the behaviour of protocols under latency, jitter, loss, duplication and reordering. Each
+ * direction has its own {@link ImpairmentProfile}. Incoming packets are read from the wrapped
+ * channel by a separate thread. Only use this on packet oriented channels.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ImpairedChannel implements Channel {
+	private static final long MAXBACKOFF = 1000;
+	private Channel delegate;
+	private int maxSize;
+	private ImpairmentScheduler outbound;
+	private ImpairmentScheduler inbound;
+	private List<byte[]> received = new ArrayList<byte[]>();
+	private boolean errorPending;
+	private Thread thread;
+
+	/**
+	 * Impair a channel.
+	 *
+	 * @param wrapped The channel to impair
+	 * @param maxSize The max. size of packets that can appear on the wrapped channel
+	 * @param outbound The impairment of written packets, null for none
+	 * @param inbound The impairment of read packets, null for none
+	 */
+	public ImpairedChannel(Channel wrapped, int maxSize, ImpairmentProfile outbound,
+			ImpairmentProfile inbound) {
+		this.delegate = wrapped;
+		this.maxSize = maxSize;
+		if (outbound != null) {
+			this.outbound = new ImpairmentScheduler(outbound, new ImpairmentScheduler.Delivery() {
+				@Override
+				public void deliver(byte[] data, int size, Object context) {
+					delegate.write(data, size);
+				}
+			}, "out-" + wrapped);
+		}
+		if (inbound != null) {
+			this.inbound = new ImpairmentScheduler(inbound, new ImpairmentScheduler.Delivery() {
+				@Override
+				public void deliver(byte[] data, int size, Object context) {
+					add(data, size);
+				}
+			}, "in-" + wrapped);
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					_read();
+				}
+			}, "ImpairedRead-" + wrapped);
+			thread.start();
+		}
+	}
+
+	void _read() {
+		byte[] data = new byte[maxSize];
+		long backoff = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			int size = delegate.read(data, 0, Long.MAX_VALUE);
+			if (size > 0) {
+				backoff = 0;
+				inbound.submit(data, size, null);
+			}
+			else if (size < 0) {
+				// Errors are not impaired. A channel that keeps failing, like a closed one,
+				// is read again with an increasing delay and reports one error at a time.
+				synchronized (received) {
+					if (!errorPending) {
+						errorPending = true;
+						received.add(null);
+						received.notifyAll();
+					}
+				}
+				backoff = (backoff == 0) ? 1 : Math.min(2 * backoff, MAXBACKOFF);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException exc) {
+					break;
+				}
+			}
+		}
+	}
+
+	private void add(byte[] data, int size) {
+		byte[] entry = new byte[size];
+		System.arraycopy(data, 0, entry, 0, size);
+		synchronized (received) {
+			received.add(entry);
+			received.notifyAll();
+		}
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		if (inbound == null) return delegate.read(data, offset, timeout);
+		synchronized (received) {
+			if (received.isEmpty() && timeout > 0) {
+				try {
+					received.wait(timeout);
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+			if (received.isEmpty()) return 0;
+			byte[] entry = received.remove(0);
+			if (entry == null) {
+				errorPending = false;
+				return -1;
+			}
+			System.arraycopy(entry, 0, data, offset, entry.length);
+			return entry.length;
+		}
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		if (outbound == null) return delegate.write(data, length);
+		outbound.submit(data, length, null);
+		return length;
+	}
+
+	/**
+	 * Get the scheduler of the written packets, to see what was done to them.
+	 *
+	 * @return The scheduler, null if writes are not impaired
+	 */
+	public ImpairmentScheduler getOutbound() {
+		return outbound;
+	}
+
+	/**
+	 * Get the scheduler of the read packets, to see what was done to them.
+	 *
+	 * @return The scheduler, null if reads are not impaired
+	 */
+	public ImpairmentScheduler getInbound() {
+		return inbound;
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		if (thread != null) thread.interrupt();
+		if (outbound != null) outbound.close();
+		if (inbound != null) inbound.close();
+		delegate.close();
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.util.Random;
+
+/**
+ * Profile of the impairment of a network link: latency, jitter, loss, duplication and
+ * reordering. The random decisions are made with a seeded generator, so a test run with the same
+ * profile and the same traffic sees the same impairment.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ImpairmentProfile {
+	private long seed;
+	private long latency;
+	private long jitter;
+	private double loss;
+	private double duplication;
+	private double reorder;
+	private long reorderDelay = 10;
+
+	/**
+	 * Construct a profile without impairment.
+	 *
+	 * @param seed The seed of the random decisions
+	 */
+	public ImpairmentProfile(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Create the random generator for a run with this profile.
+	 *
+	 * @return A generator seeded with the seed of this profile
+	 */
+	public Random createRandom() {
+		return new Random(seed);
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Set the fixed delay of every packet.
+	 *
+	 * @param latency The delay in ms
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Set the variation of the delay. Packets may overtake each other as a result.
+	 *
+	 * @param jitter The maximum deviation from the latency, in ms. The deviation is uniformly
+	 * distributed
+	 */
+	public void setJitter(long jitter) {
+		this.jitter = jitter;
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	/**
+	 * Set the chance of losing a packet.
+	 *
+	 * @param loss The chance, between 0 and 1
+	 */
+	public void setLoss(double loss) {
+		this.loss = loss;
+	}
+
+	public double getDuplication() {
+		return duplication;
+	}
+
+	/**
+	 * Set the chance of delivering a packet twice.
+	 *
+	 * @param duplication The chance, between 0 and 1
+	 */
+	public void setDuplication(double duplication) {
+		this.duplication = duplication;
+	}
+
+	public double getReorder() {
+		return reorder;
+	}
+
+	/**
+	 * Set the chance of holding a packet back, so packets sent after it overtake it.
+	 *
+	 * @param reorder The chance, between 0 and 1
+	 */
+	public void setReorder(double reorder) {
+		this.reorder = reorder;
+	}
+
+	public long getReorderDelay() {
+		return reorderDelay;
+	}
+
+	/**
+	 * Set the time a reordered packet is held back.
+	 *
+	 * @param reorderDelay The extra delay in ms, defaults to 10
+	 */
+	public void setReorderDelay(long reorderDelay) {
+		this.reorderDelay = reorderDelay;
+	}
+
+	@Override
+	public String toString() {
+		return "seed " + seed + ", latency " + latency + " ms, jitter " + jitter + " ms, loss " +
+			loss + ", duplication " + duplication + ", reorder " + reorder;
+	}
+}
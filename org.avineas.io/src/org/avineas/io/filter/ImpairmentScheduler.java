@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler that delivers packets according to an impairment profile. Packets are lost,
+ * duplicated, delayed and reordered as the profile prescribes. Delayed packets are copied
+ * and delivered by a separate thread, packets without delay are delivered on the submitting
+ * thread.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ImpairmentScheduler {
+	private ImpairmentProfile profile;
+	private Random random;
+	private Delivery delivery;
+	private DelayQueue<Pending> pending = new DelayQueue<Pending>();
+	private long order;
+	private int lost;
+	private int duplicated;
+	private int reordered;
+	private Thread thread;
+
+	/**
+	 * Interface for delivering packets.
+	 */
+	public interface Delivery {
+		/**
+		 * Deliver a packet.
+		 *
+		 * @param data The packet data, only valid during the call
+		 * @param size The size of the packet
+		 * @param context The context passed when the packet was submitted
+		 */
+		public void deliver(byte[] data, int size, Object context);
+	}
+
+	/**
+	 * Construct a scheduler.
+	 *
+	 * @param profile The impairment to apply
+	 * @param delivery The delivery of the packets
+	 * @param name The name of the delivering thread
+	 */
+	public ImpairmentScheduler(ImpairmentProfile profile, Delivery delivery, String name) {
+		this.profile = profile;
+		this.random = profile.createRandom();
+		this.delivery = delivery;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "Impairment-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void deliver() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Pending packet = pending.take();
+				delivery.deliver(packet.data, packet.data.length, packet.context);
+			} catch (InterruptedException exc) {
+				break;
+			} catch (Exception exc) {}
+		}
+	}
+
+	private synchronized long getDelay() {
+		long delay = profile.getLatency();
+		long jitter = profile.getJitter();
+		if (jitter > 0) {
+			delay += (long) ((random.nextDouble() * 2 - 1) * jitter);
+		}
+		if (profile.getReorder() > 0 && random.nextDouble() < profile.getReorder()) {
+			reordered++;
+			delay += profile.getReorderDelay();
+		}
+		return Math.max(0, delay);
+	}
+
+	/**
+	 * Submit a packet for delivery.
+	 *
+	 * @param data The packet data
+	 * @param size The packet size
+	 * @param context Context passed to the delivery, like a destination
+	 */
+	public void submit(byte[] data, int size, Object context) {
+		int copies = 1;
+		synchronized (this) {
+			if (profile.getLoss() > 0 && random.nextDouble() < profile.getLoss()) {
+				lost++;
+				return;
+			}
+			if (profile.getDuplication() > 0 && random.nextDouble() < profile.getDuplication()) {
+				duplicated++;
+				copies = 2;
+			}
+		}
+		for (int cnt = 0; cnt < copies; cnt++) {
+			long delay = getDelay();
+			if (delay == 0) {
+				delivery.deliver(data, size, context);
+				continue;
+			}
+			byte[] copy = new byte[size];
+			System.arraycopy(data, 0, copy, 0, size);
+			synchronized (this) {
+				pending.add(new Pending(copy, context, System.nanoTime() + delay * 1000000L, order++));
+			}
+		}
+	}
+
+	public synchronized int getLost() {
+		return lost;
+	}
+
+	public synchronized int getDuplicated() {
+		return duplicated;
+	}
+
+	public synchronized int getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * Stop delivering. Packets still pending are dropped.
+	 */
+	public void close() {
+		thread.interrupt();
+		pending.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return profile + ": lost " + lost + ", duplicated " + duplicated + ", reordered " + reordered;
+	}
+
+	private static class Pending implements Delayed {
+		byte[] data;
+		Object context;
+		long due;
+		long order;
+
+		Pending(byte[] data, Object context, long due, long order) {
+			this.data = data;
+			this.context = context;
+			this.due = due;
+			this.order = order;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			Pending pending = (Pending) other;
+			long diff = due - pending.due;
+			if (diff == 0) diff = order - pending.order;
+			return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+		}
+	}
+}
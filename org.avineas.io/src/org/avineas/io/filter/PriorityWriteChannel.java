@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.WriteChannel;
+import org.avineas.io.stat.Histogram;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Wrapper around a write channel that is shared by writers of different priority. Writers
+ * queue for the channel and the channel is handed to the waiting writer with the highest
+ * priority. To prevent starvation of bulk writes, a bulk writer gets the channel when it has
+ * waited longer than the maximum bulk delay or when a number of urgent writes in a row has
+ * been done while it was waiting.
+ * <br/>
+ * The statistics contain a histogram per priority of the time, in us, writers waited for the
+ * channel.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class PriorityWriteChannel<C extends WriteChannel> implements WriteChannel, StatisticsProvider {
+	/**
+	 * The priority classes of writes.
+	 */
+	public enum Priority {
+		URGENT, BULK
+	}
+
+	private C delegate;
+	private ArrayDeque<Ticket> urgent = new ArrayDeque<Ticket>();
+	private ArrayDeque<Ticket> bulk = new ArrayDeque<Ticket>();
+	private boolean busy;
+	private boolean closed;
+	private int urgentRun;
+	private int maxUrgentRun = 8;
+	private long maxBulkDelay = 100000000L;
+	private SimpleStatistics statistics = new SimpleStatistics(null, 0);
+	private Histogram urgentDelays = new Histogram(24);
+	private Histogram bulkDelays = new Histogram(24);
+
+	/**
+	 * Add prioritized writing to a channel.
+	 *
+	 * @param wrapped The channel to write to
+	 */
+	public PriorityWriteChannel(C wrapped) {
+		this.delegate = wrapped;
+		statistics.setExtra("urgentDelay", urgentDelays);
+		statistics.setExtra("bulkDelay", bulkDelays);
+	}
+
+	/**
+	 * Set the starvation protection of bulk writes.
+	 *
+	 * @param maxUrgentRun The number of urgent writes that may be done in a row while a
+	 * bulk write is waiting, defaults to 8
+	 * @param maxBulkDelay The time, in ms, after which a waiting bulk write goes first,
+	 * defaults to 100
+	 */
+	public synchronized void setStarvationLimits(int maxUrgentRun, long maxBulkDelay) {
+		this.maxUrgentRun = maxUrgentRun;
+		this.maxBulkDelay = maxBulkDelay * 1000000L;
+	}
+
+	/**
+	 * Write with bulk priority.
+	 */
+	@Override
+	public int write(byte[] data, int length) {
+		return write(Priority.BULK, data, length);
+	}
+
+	/**
+	 * Write with a specific priority. Waits until the channel is handed to this writer.
+	 *
+	 * @param priority The priority of the write
+	 * @param data The data to write
+	 * @param length The length of the data
+	 * @return The result of the write on the wrapped channel, -1 if the channel is (or gets)
+	 * closed before this writer gets it or if the writer was interrupted while waiting
+	 */
+	public int write(Priority priority, byte[] data, int length) {
+		Ticket ticket = new Ticket(priority);
+		synchronized (this) {
+			if (closed) return -1;
+			(priority == Priority.URGENT ? urgent : bulk).add(ticket);
+			grant();
+			while (!ticket.granted) {
+				// Closing the channel fails the writers that are still waiting.
+				if (closed) return -1;
+				try {
+					this.wait();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					if (ticket.granted) break;
+					urgent.remove(ticket);
+					bulk.remove(ticket);
+					return -1;
+				}
+			}
+		}
+		int size = -1;
+		try {
+			size = delegate.write(data, length);
+		} finally {
+			synchronized (this) {
+				if (size < 0) statistics.error();
+				else statistics.written();
+				busy = false;
+				grant();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Hand the channel to the next writer, if the channel is free. Must be called with the
+	 * lock held.
+	 */
+	private void grant() {
+		if (busy || closed) return;
+		Ticket next = select();
+		if (next == null) return;
+		busy = true;
+		next.granted = true;
+		long delay = (System.nanoTime() - next.queued) / 1000L;
+		(next.priority == Priority.URGENT ? urgentDelays : bulkDelays).add(delay);
+		this.notifyAll();
+	}
+
+	private Ticket select() {
+		Ticket firstBulk = bulk.peek();
+		if (firstBulk == null) {
+			urgentRun = 0;
+			return urgent.poll();
+		}
+		if (urgent.isEmpty() || urgentRun >= maxUrgentRun ||
+				System.nanoTime() - firstBulk.queued >= maxBulkDelay) {
+			urgentRun = 0;
+			return bulk.poll();
+		}
+		urgentRun++;
+		return urgent.poll();
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			urgent.clear();
+			bulk.clear();
+			this.notifyAll();
+		}
+		delegate.close();
+	}
+
+	@Override
+	public synchronized Statistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized void resetCounters() {
+		statistics.reset();
+		urgentDelays.reset();
+		bulkDelays.reset();
+	}
+
+	C getDelegate() {
+		return this.delegate;
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+
+	private static class Ticket {
+		Priority priority;
+		long queued = System.nanoTime();
+		boolean granted;
+
+		Ticket(Priority priority) {
+			this.priority = priority;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.WriteChannel;
+import org.avineas.io.stat.Histogram;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Wrapper around a write channel that limits the rate of writes, to protect devices that can't
+ * handle traffic at full speed. The rate can be limited in packets per second, in bytes per
+ * second or both, each with its own burst size. Writers that exceed the rate are delayed.
+ * <br/>
+ * The statistics contain the number of throttled writes and a histogram of the throttle delays,
+ * in us.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class RateLimitingWriteChannel<C extends WriteChannel> implements WriteChannel, StatisticsProvider {
+	private C delegate;
+	private TokenBucket packets;
+	private TokenBucket bytes;
+	private SimpleStatistics statistics = new SimpleStatistics(null, 0);
+	private Histogram delays = new Histogram(24);
+	private int throttled;
+
+	/**
+	 * Add rate limiting to a channel.
+	 *
+	 * @param wrapped The channel to write to
+	 * @param packetRate The max. number of packets per second, 0 for no limit
+	 * @param packetBurst The number of packets that may be written at once
+	 * @param byteRate The max. number of bytes per second, 0 for no limit
+	 * @param byteBurst The number of bytes that may be written at once
+	 */
+	public RateLimitingWriteChannel(C wrapped, double packetRate, int packetBurst,
+			double byteRate, int byteBurst) {
+		this.delegate = wrapped;
+		this.packets = (packetRate > 0) ? new TokenBucket(packetRate, packetBurst) : null;
+		this.bytes = (byteRate > 0) ? new TokenBucket(byteRate, byteBurst) : null;
+		statistics.setExtra("throttleDelay", delays);
+		statistics.setExtra("throttled", throttled);
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		long delay = TokenBucket.take(packets, bytes, length);
+		if (delay > 0) {
+			synchronized (this) {
+				throttled++;
+				statistics.setExtra("throttled", throttled);
+			}
+			delays.add(delay / 1000L);
+			long end = System.nanoTime() + delay;
+			for (long left = delay; left > 0; left = end - System.nanoTime()) {
+				LockSupport.parkNanos(left);
+				if (Thread.currentThread().isInterrupted()) return -1;
+			}
+		}
+		int size = delegate.write(data, length);
+		synchronized (this) {
+			if (size < 0) statistics.error();
+			else statistics.written();
+		}
+		return size;
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	@Override
+	public synchronized Statistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized void resetCounters() {
+		statistics.reset();
+		delays.reset();
+		throttled = 0;
+		statistics.setExtra("throttled", throttled);
+	}
+
+	C getDelegate() {
+		return this.delegate;
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.filter;
+
+/**
+ * Token bucket for shaping traffic. Tokens are added at a fixed rate up to the burst size and
+ * are taken for every unit of traffic. Taking more tokens than available is allowed; the
+ * caller is then told how long to wait before the traffic may be sent, so the bucket can be
+ * used both by blocking writers and by non-blocking schedulers.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class TokenBucket {
+	private double rate;
+	private double burst;
+	private double tokens;
+	private long last;
+
+	/**
+	 * Construct a bucket that is full.
+	 *
+	 * @param rate The number of tokens added per second
+	 * @param burst The maximum number of tokens in the bucket
+	 */
+	public TokenBucket(double rate, double burst) {
+		if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.last = System.nanoTime();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate / 1000000000.0);
+		last = now;
+	}
+
+	/**
+	 * Take tokens from the bucket.
+	 *
+	 * @param amount The number of tokens to take
+	 * @return The time, in ns, to wait before the traffic may be sent. 0 if it may be sent
+	 * right away
+	 */
+	public synchronized long take(double amount) {
+		refill();
+		tokens -= amount;
+		return (tokens >= 0) ? 0 : (long) (-tokens * 1000000000.0 / rate);
+	}
+
+	/**
+	 * Get the time until a number of tokens is available, without taking them.
+	 *
+	 * @param amount The number of tokens
+	 * @return The time, in ns, until the tokens are available
+	 */
+	public synchronized long getDelay(double amount) {
+		refill();
+		double missing = amount - tokens;
+		return (missing <= 0) ? 0 : (long) (missing * 1000000000.0 / rate);
+	}
+
+	/**
+	 * Take the tokens for a packet from a packet and a byte bucket.
+	 *
+	 * @param packets The bucket limiting the packets, null for no limit
+	 * @param bytes The bucket limiting the bytes, null for no limit
+	 * @param length The length of the packet
+	 * @return The time, in ns, to wait before the packet may be sent, the longest wait of
+	 * both buckets
+	 */
+	public static long take(TokenBucket packets, TokenBucket bytes, int length) {
+		long delay = 0;
+		if (packets != null) {
+			delay = packets.take(1);
+		}
+		if (bytes != null) {
+			delay = Math.max(delay, bytes.take(length));
+		}
+		return delay;
+	}
+
+	@Override
+	public String toString() {
+		return "rate " + rate + "/s, burst " + burst;
+	}
+}
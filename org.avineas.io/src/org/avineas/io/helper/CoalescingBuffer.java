@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.helper;
+
+import org.avineas.io.WriteChannel;
+
+/**
+ * Buffer that coalesces small writes into larger ones, the common part of the coalescing
+ * channel and pipeline stage. Written data is passed to a write channel when the buffer is
+ * full, when it is flushed or, if a deadline is set, by the first write after the deadline of
+ * the oldest buffered data has passed.
+ * <br/>
+ * A write returns -1 without buffering anything when passing the data buffered before fails,
+ * so -1 never means that the data may be sent twice. A failure of passing data that was
+ * already taken is reported to the next writer or to the next flush.
+ * <br/>
+ * The buffer is not thread safe, its users must synchronize.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class CoalescingBuffer {
+	/**
+	 * The reason data is passed on.
+	 */
+	public enum Reason {
+		/** The buffer is full, or the data doesn't fit in it. */
+		SIZE,
+		/** The deadline of the oldest buffered data has passed. */
+		DEADLINE,
+		/** The buffer is flushed explicitly. */
+		EXPLICIT
+	}
+
+	private byte[] buffer;
+	private int count;
+	private long deadline;
+	private long due;
+	private boolean failed;
+
+	/**
+	 * Construct a coalescing buffer.
+	 *
+	 * @param threshold The number of bytes that are buffered at most
+	 * @param deadline The time, in microseconds, that data may wait in the buffer. A value
+	 * <= 0 means that there is no deadline
+	 */
+	public CoalescingBuffer(int threshold, long deadline) {
+		this.buffer = new byte[threshold];
+		this.deadline = deadline * 1000L;
+	}
+
+	/**
+	 * Called for every time data is passed on. Does nothing by default, can be overridden
+	 * for statistics.
+	 *
+	 * @param reason The reason the data is passed on
+	 * @param length The number of bytes passed on
+	 * @param success Whether the write channel accepted the data
+	 */
+	protected void passed(Reason reason, int length, boolean success) {
+	}
+
+	private void forward(WriteChannel next, byte[] data, int length, Reason reason) {
+		boolean success = next.write(data, length) >= 0;
+		if (!success) failed = true;
+		passed(reason, length, success);
+	}
+
+	/**
+	 * Check and reset the failure of passing data on.
+	 *
+	 * @return True if passing data failed since the last check
+	 */
+	private boolean failed() {
+		boolean result = failed;
+		failed = false;
+		return result;
+	}
+
+	/**
+	 * Check whether data is buffered.
+	 *
+	 * @return True if nothing is buffered
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Get the time the buffered data must be passed on.
+	 *
+	 * @return The time in {@link System#nanoTime()} terms. Only valid if data is buffered
+	 * and a deadline is set
+	 */
+	public long getDue() {
+		return due;
+	}
+
+	/**
+	 * Check whether the deadline of the buffered data has passed.
+	 *
+	 * @return True if data is buffered and its deadline has passed
+	 */
+	public boolean isDue() {
+		return count > 0 && deadline > 0 && System.nanoTime() - due >= 0;
+	}
+
+	/**
+	 * Pass the buffered data on, if any.
+	 *
+	 * @param next The channel to write to
+	 * @param reason The reason of passing the data on
+	 */
+	public void pass(WriteChannel next, Reason reason) {
+		if (count == 0) return;
+		forward(next, buffer, count, reason);
+		count = 0;
+	}
+
+	/**
+	 * Pass the buffered data on and report whether everything passed since the last check
+	 * succeeded.
+	 *
+	 * @param next The channel to write to
+	 * @return True if the data was passed on, false if this or an earlier pass failed
+	 */
+	public boolean flush(WriteChannel next) {
+		pass(next, Reason.EXPLICIT);
+		return !failed();
+	}
+
+	/**
+	 * Write data via the buffer.
+	 *
+	 * @param next The channel to pass the data on to
+	 * @param data The data
+	 * @param length The length of the data
+	 * @return The length, or -1 if the data was not taken
+	 */
+	public int write(WriteChannel next, byte[] data, int length) {
+		// A failure of an earlier pass is reported to the next writer.
+		if (failed()) return -1;
+		if (count > 0 && count + length > buffer.length) {
+			pass(next, Reason.SIZE);
+		}
+		else if (isDue()) {
+			pass(next, Reason.DEADLINE);
+		}
+		// Nothing of this write is taken, so -1 never means the data may be sent twice.
+		if (failed()) return -1;
+		if (length >= buffer.length) {
+			// Doesn't make sense to buffer this one.
+			forward(next, data, length, Reason.SIZE);
+			if (failed()) return -1;
+		}
+		else {
+			if (count == 0) {
+				due = System.nanoTime() + deadline;
+			}
+			System.arraycopy(data, 0, buffer, count, length);
+			count += length;
+			// The data is taken: a failure of this pass is reported to the next writer.
+			if (count >= buffer.length) {
+				pass(next, Reason.SIZE);
+			}
+		}
+		return length;
+	}
+}
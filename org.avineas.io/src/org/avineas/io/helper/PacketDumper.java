@@ -30,10 +30,23 @@ public class PacketDumper {
 	 * @return The string buffer with the filled data
 	 */
 	public static StringBuffer dump(String prefix, byte[] data, int size) {
+		return dump(prefix, data, 0, size);
+	}
+	
+	/**
+	 * Dump a part of a buffer with a specific prefix into a string buffer.
+	 * 
+	 * @param prefix The prefix to use
+	 * @param data The data to dump
+	 * @param offset The offset of the packet in the data
+	 * @param size The size to dump
+	 * @return The string buffer with the filled data
+	 */
+	public static StringBuffer dump(String prefix, byte[] data, int offset, int size) {
 		StringBuffer buffer = new StringBuffer();
 		if (size < 0) return buffer;
 		buffer.append(prefix).append(" ");
-		for (int cnt = 0; cnt < size; cnt++) {
+		for (int cnt = offset; cnt < offset + size; cnt++) {
 			buffer.append(Integer.toHexString(data[cnt] & 0xff)).append(" ");
 		}
 		return buffer;
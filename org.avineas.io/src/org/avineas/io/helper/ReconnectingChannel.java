@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.helper;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+import org.avineas.io.ChannelProvider;
+import org.avineas.io.Reconnectable;
+import org.avineas.io.trace.ChannelEvent;
+import org.avineas.io.trace.ChannelTracer;
+
+/**
+ * Channel that maintains a permanent connection via a channel provider. When the connection
+ * fails it is closed and the next read or write gets a new one from the provider. Is the
+ * common base of the TCP and unix domain socket channels.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ReconnectingChannel implements Channel, Reconnectable {
+	private Channel currentChannel;
+	private boolean connecting;
+	private ChannelProvider provider;
+
+	/**
+	 * Construct a channel that gets its connections from a provider.
+	 *
+	 * @param provider The provider of the connections
+	 */
+	protected ReconnectingChannel(ChannelProvider provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Wait for a connection to become available. Only one thread at a time sets up the
+	 * connection, the others wait for its result, but not longer than their own timeout.
+	 *
+	 * @param timeout The timeout, in ms. to wait for a connection
+	 * @return The connection, or null if no connection could be made
+	 */
+	private Channel waitForChannel(long timeout) {
+		synchronized (this) {
+			long started = System.currentTimeMillis();
+			while (this.currentChannel == null && connecting) {
+				long waited = System.currentTimeMillis() - started;
+				if (waited >= timeout) return null;
+				try {
+					this.wait(timeout - waited);
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			if (this.currentChannel != null)
+				return this.currentChannel;
+			connecting = true;
+		}
+		Channel cur = null;
+		long begin = ChannelTracer.begin();
+		try {
+			cur = provider.getChannel(timeout);
+			ChannelTracer.end(ChannelEvent.Type.CONNECT, provider, begin, 0, cur != null);
+		} catch (Exception exc) {
+		} finally {
+			synchronized (this) {
+				this.currentChannel = cur;
+				connecting = false;
+				this.notifyAll();
+			}
+		}
+		return cur;
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		Channel channel = waitForChannel(timeout);
+		if (channel == null) return 0;
+		int size = channel.read(data, offset, timeout);
+		if (size < 0) {
+			_close(channel);
+		}
+		return size;
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		Channel channel = waitForChannel(Long.MAX_VALUE);
+		if (channel == null) return -1;
+		int size = channel.write(data, length);
+		if (size < 0) {
+			_close(channel);
+		}
+		return size;
+	}
+
+	/**
+	 * Close a connection. A connection that failed is only closed if it still is the current
+	 * one: it may already have been replaced, for example after a {@link #reconnect()} by another
+	 * thread, and the new connection must survive.
+	 *
+	 * @param failed The connection that failed, null to close the current connection
+	 */
+	private synchronized void _close(Channel failed) {
+		if (failed != null && failed != this.currentChannel) return;
+		if (this.currentChannel != null) {
+			long begin = ChannelTracer.begin();
+			try {
+				this.currentChannel.close();
+			} catch (Exception exc) {}
+			ChannelTracer.end(ChannelEvent.Type.DISCONNECT, provider, begin, 0, true);
+		}
+		this.currentChannel = null;
+	}
+
+	@Override
+	public void reconnect() {
+		_close(null);
+	}
+
+	@Override
+	@PreDestroy
+	public void close() {
+		_close(null);
+		try {
+			provider.close();
+		} catch (Exception exc) {}
+	}
+
+	@Override
+	public String toString() {
+		return provider.toString();
+	}
+}
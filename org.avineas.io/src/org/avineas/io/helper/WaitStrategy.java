@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.helper;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Strategy for waiting while polling for data. A thread polling for data first spins, then
+ * yields and then parks with increasing intervals. Spinning burns a processor, but notices
+ * new data without the wake up latency of the operating system. If the strategy is
+ * exhausted, the caller falls back to its normal blocking wait.
+ * 
+ * @author Arie van Wijngaarden
+ */
+public class WaitStrategy {
+	/** Don't poll, block in the operating system right away. The default for most channels. */
+	public static final WaitStrategy BLOCKING = new WaitStrategy(0, 0, 0);
+	/** Spin for a while, then back off to parking of at most 1 ms. */
+	public static final WaitStrategy BACKOFF = new WaitStrategy(1000, 1000, 1000000L);
+	/** Spin all the time, for latency critical lines with a processor to spare. */
+	public static final WaitStrategy BUSY = new WaitStrategy(Integer.MAX_VALUE, 0, 0);
+	private static final long MAXTIMEOUT = Long.MAX_VALUE / 2000000L;
+	private int spins;
+	private int yields;
+	private long maxPark;
+
+	/**
+	 * Construct a wait strategy.
+	 * 
+	 * @param spins The number of polls done while spinning
+	 * @param yields The number of polls done after yielding the processor
+	 * @param maxPark The maximum time, in ns, to park between polls after yielding. Parking
+	 * starts with 1 us and doubles every poll. If 0, the strategy is exhausted after yielding
+	 */
+	public WaitStrategy(int spins, int yields, long maxPark) {
+		this.spins = spins;
+		this.yields = yields;
+		this.maxPark = maxPark;
+	}
+
+	/**
+	 * Check whether this strategy polls at all.
+	 * 
+	 * @return True if the caller should block right away
+	 */
+	public boolean isBlocking() {
+		return spins <= 0 && yields <= 0 && maxPark <= 0;
+	}
+
+	/**
+	 * Wait before the next poll.
+	 * 
+	 * @param iteration The number of polls done before
+	 * @return True if the caller should poll again, false if the strategy is exhausted and
+	 * the caller should block
+	 */
+	public boolean idle(int iteration) {
+		if (iteration < spins) return true;
+		if (iteration - spins < yields) {
+			Thread.yield();
+			return true;
+		}
+		if (maxPark <= 0) return false;
+		int shift = Math.min(20, iteration - spins - yields);
+		LockSupport.parkNanos(Math.min(maxPark, 1000L << shift));
+		return true;
+	}
+
+	/**
+	 * Wait before the next poll, but not beyond a deadline. Parking is limited to the time
+	 * left, so a caller with a short timeout doesn't oversleep it.
+	 * 
+	 * @param iteration The number of polls done before
+	 * @param deadline The deadline, in {@link System#nanoTime()} terms, see 
+	 * {@link #getDeadline(long)}
+	 * @return True if the caller should poll again, false if the strategy is exhausted or the
+	 * deadline has passed
+	 */
+	public boolean idle(int iteration, long deadline) {
+		// While spinning, the clock is only read now and then.
+		if (iteration < spins && (iteration & 0xff) != 0xff) return true;
+		long left = deadline - System.nanoTime();
+		if (left <= 0) return false;
+		if (iteration < spins) return true;
+		if (iteration - spins < yields) {
+			Thread.yield();
+			return true;
+		}
+		if (maxPark <= 0) return false;
+		int shift = Math.min(20, iteration - spins - yields);
+		LockSupport.parkNanos(Math.min(left, Math.min(maxPark, 1000L << shift)));
+		return true;
+	}
+
+	/**
+	 * Get the deadline of a timeout.
+	 * 
+	 * @param timeout The timeout in ms
+	 * @return The deadline in {@link System#nanoTime()} terms. Very long timeouts are limited
+	 * to about a century
+	 */
+	public static long getDeadline(long timeout) {
+		return System.nanoTime() + Math.min(Math.max(timeout, 0), MAXTIMEOUT) * 1000000L;
+	}
+
+	@Override
+	public String toString() {
+		return "spins " + spins + ", yields " + yields + ", max. park " + maxPark + " ns";
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.notify;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.ReadChannel;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * Wrapper around a read channel that passes every packet read to all its consumers, unlike a
+ * {@link NotifyingReadChannel} where each packet is taken by one reader. A reading thread reads
+ * the packets directly into the slots of a ring and every consumer reads the ring with its own
+ * sequence, so consumers don't take locks or copies from each other.
+ * <br/>
+ * If a consumer falls behind by the size of the ring, the gating decides: with
+ * {@link Gating#BLOCK} the reading thread waits for the slowest consumer, with
+ * {@link Gating#SKIP} the slow consumer loses the oldest packets, which is counted.
+ * <br/>
+ * Listeners of the consumers are called on the reading thread and should therefore return
+ * quickly.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class BroadcastReadChannel<C extends ReadChannel> implements Closeable {
+	/**
+	 * What to do if the slowest consumer is a full ring behind.
+	 */
+	public enum Gating {
+		/** Wait for the consumer, applying back pressure to the wrapped channel. */
+		BLOCK,
+		/** Overwrite, the consumer skips the packets it missed. */
+		SKIP
+	}
+
+	private static final long MAXBACKOFF = 1000;
+	private C delegate;
+	private BroadcastRing ring;
+	private Gating gating;
+	private List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+	private Object lock = new Object();
+	private AtomicInteger waiting = new AtomicInteger();
+	private volatile WaitStrategy strategy = WaitStrategy.BLOCKING;
+	private volatile boolean closed;
+	private Thread thread;
+
+	/**
+	 * Broadcast the packets of a read channel.
+	 *
+	 * @param wrapped The channel to read from
+	 * @param maxSize The max. size of packets that can appear on the wrapped channel
+	 * @param slots The number of packets the ring holds, rounded up to a power of 2
+	 * @param gating What to do with consumers that are a full ring behind
+	 */
+	public BroadcastReadChannel(C wrapped, int maxSize, int slots, Gating gating) {
+		this.delegate = wrapped;
+		this.ring = new BroadcastRing(slots, maxSize);
+		this.gating = gating;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_read();
+			}
+		}, "BroadcastRead-" + wrapped.toString());
+		thread.start();
+	}
+
+	void _read() {
+		long sequence = 0;
+		long backoff = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (gating == Gating.BLOCK && !waitForConsumers(sequence)) break;
+				byte[] data = ring.claim(sequence);
+				int size = delegate.read(data, 0, Long.MAX_VALUE);
+				if (size == 0) continue;
+				// Errors are passed to the consumers as well. A channel that keeps failing, like
+				// a closed one, is read again with an increasing delay and its errors are
+				// published once until a read succeeds again.
+				if (size < 0 && backoff > 0) {
+					backoff = Math.min(2 * backoff, MAXBACKOFF);
+					Thread.sleep(backoff);
+					continue;
+				}
+				ring.publish(sequence, size);
+				sequence++;
+				if (waiting.get() > 0) {
+					synchronized (lock) {
+						lock.notifyAll();
+					}
+				}
+				for (Consumer consumer : consumers) {
+					consumer.notifyListeners();
+				}
+				backoff = (size < 0) ? 1 : 0;
+				if (backoff > 0) Thread.sleep(backoff);
+			} catch (Exception exc) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Wait until the slot for a sequence is read by all consumers.
+	 *
+	 * @param sequence The sequence to write
+	 * @return False if interrupted
+	 */
+	private boolean waitForConsumers(long sequence) {
+		long limit = sequence - ring.getCapacity();
+		for (int cnt = 0; ; cnt++) {
+			boolean free = true;
+			for (Consumer consumer : consumers) {
+				if (consumer.next <= limit) {
+					free = false;
+					break;
+				}
+			}
+			if (free) return true;
+			if (Thread.currentThread().isInterrupted()) return false;
+			WaitStrategy.BACKOFF.idle(cnt);
+		}
+	}
+
+	/**
+	 * Add a consumer. The consumer sees the packets read from now on.
+	 *
+	 * @return The consumer. Closing it removes it from this channel
+	 */
+	public Consumer addConsumer() {
+		Consumer consumer = new Consumer(ring.getCursor() + 1);
+		consumers.add(consumer);
+		return consumer;
+	}
+
+	/**
+	 * Set the way consumers wait for packets.
+	 *
+	 * @param strategy The strategy, defaults to {@link WaitStrategy#BLOCKING}
+	 */
+	public void setWaitStrategy(WaitStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		closed = true;
+		thread.interrupt();
+		delegate.close();
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+
+	/**
+	 * Consumer of the packets of the channel. Reads the packets in order, starting with the
+	 * packets read after it was added.
+	 */
+	public class Consumer implements ReadChannel, Notifier {
+		private volatile long next;
+		private long skipped;
+		private Set<Listener> listeners = new HashSet<Listener>();
+
+		Consumer(long next) {
+			this.next = next;
+		}
+
+		private boolean available() {
+			return next <= ring.getCursor();
+		}
+
+		/**
+		 * Wait for a packet to become available.
+		 *
+		 * @param timeout The time to wait, in ms
+		 */
+		private void waitForData(long timeout) {
+			long started = System.currentTimeMillis();
+			long deadline = WaitStrategy.getDeadline(timeout);
+			WaitStrategy strategy = BroadcastReadChannel.this.strategy;
+			for (int cnt = 0; !available() && strategy.idle(cnt, deadline); cnt++);
+			waiting.incrementAndGet();
+			try {
+				synchronized (lock) {
+					while (!available() && !closed) {
+						long remaining = timeout - (System.currentTimeMillis() - started);
+						if (remaining <= 0) break;
+						lock.wait(remaining);
+					}
+				}
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+
+		@Override
+		public synchronized int read(byte[] data, int offset, long timeout) {
+			if (!available() && timeout > 0) {
+				waitForData(timeout);
+			}
+			for (;;) {
+				if (!available()) return closed ? -1 : 0;
+				int size = ring.read(next, data, offset);
+				if (size != BroadcastRing.OVERRUN) {
+					next++;
+					return size;
+				}
+				// Overwritten, continue with the oldest packet still present.
+				long oldest = ring.getCursor() - ring.getCapacity() + 2;
+				if (oldest > next) {
+					skipped += oldest - next;
+					next = oldest;
+				}
+			}
+		}
+
+		/**
+		 * Get the number of packets this consumer missed because it fell behind.
+		 *
+		 * @return The number of skipped packets
+		 */
+		public synchronized long getSkipped() {
+			return skipped;
+		}
+
+		@Override
+		public void notify(Listener toNotify) {
+			synchronized (listeners) {
+				listeners.add(toNotify);
+			}
+		}
+
+		void notifyListeners() {
+			Listener[] toNotify;
+			synchronized (listeners) {
+				if (listeners.isEmpty()) return;
+				toNotify = listeners.toArray(new Listener[listeners.size()]);
+			}
+			for (Listener listener : toNotify) {
+				try {
+					listener.checkChannel();
+				} catch (Exception exc) {}
+			}
+		}
+
+		@Override
+		public void close() {
+			consumers.remove(this);
+		}
+
+		@Override
+		public String toString() {
+			return BroadcastReadChannel.this.toString();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.notify;
+
+/**
+ * Ring of packet slots that is written by one producer and read by any number of consumers,
+ * each at its own pace. Slots are identified by an ever increasing sequence. A consumer that
+ * falls behind more than the ring size finds its slot overwritten; this is detected by
+ * checking the sequence of the slot before and after copying the data, like a seqlock.
+ *
+ * @author Arie van Wijngaarden
+ */
+class BroadcastRing {
+	/** Returned by a read if the slot was overwritten. */
+	static final int OVERRUN = Integer.MIN_VALUE;
+	private Slot[] slots;
+	private int mask;
+	private volatile long cursor = -1;
+	private volatile int barrier;
+
+	/**
+	 * Construct a ring.
+	 *
+	 * @param size The number of slots, rounded up to a power of 2
+	 * @param maxSize The size of each slot
+	 */
+	BroadcastRing(int size, int maxSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+		slots = new Slot[capacity];
+		for (int cnt = 0; cnt < capacity; cnt++) {
+			slots[cnt] = new Slot(maxSize);
+		}
+		mask = capacity - 1;
+	}
+
+	int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Get the sequence of the last published slot.
+	 *
+	 * @return The sequence, -1 if nothing was published yet
+	 */
+	long getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Make sure that memory access before this call is not reordered with memory access after
+	 * it, via a volatile store followed by a volatile load.
+	 */
+	private void fence() {
+		barrier = 0;
+		if (barrier != 0) {
+			barrier = 0;
+		}
+	}
+
+	/**
+	 * Claim the slot for a sequence, to fill it. Producer only. Readers of the previous
+	 * contents of the slot will notice that it is overwritten.
+	 *
+	 * @param sequence The sequence to claim
+	 * @return The buffer of the slot
+	 */
+	byte[] claim(long sequence) {
+		Slot slot = slots[(int) sequence & mask];
+		slot.sequence = -1;
+		fence();
+		return slot.data;
+	}
+
+	/**
+	 * Publish a claimed slot. Producer only.
+	 *
+	 * @param sequence The sequence of the slot
+	 * @param size The size of the data in the slot
+	 */
+	void publish(long sequence, int size) {
+		Slot slot = slots[(int) sequence & mask];
+		slot.size = size;
+		slot.sequence = sequence;
+		cursor = sequence;
+	}
+
+	/**
+	 * Copy the data of a slot.
+	 *
+	 * @param sequence The sequence to read, must be published
+	 * @param data The buffer to copy to
+	 * @param offset The offset in the buffer
+	 * @return The size of the slot, {@link #OVERRUN} if it was overwritten
+	 */
+	int read(long sequence, byte[] data, int offset) {
+		Slot slot = slots[(int) sequence & mask];
+		if (slot.sequence != sequence) return OVERRUN;
+		int size = slot.size;
+		if (size > 0) {
+			System.arraycopy(slot.data, 0, data, offset, size);
+		}
+		fence();
+		return (slot.sequence == sequence) ? size : OVERRUN;
+	}
+
+	private static class Slot {
+		volatile long sequence = -1;
+		int size;
+		byte[] data;
+
+		Slot(int maxSize) {
+			data = new byte[maxSize];
+		}
+	}
+}
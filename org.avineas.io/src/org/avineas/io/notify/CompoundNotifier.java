@@ -58,12 +58,14 @@ public class CompoundNotifier {
 				while (this.counter == 0) {
 					try {
 						childs.wait();
-						toNotify.addAll(childs);
 					} catch (InterruptedException exc) {
 						Thread.currentThread().interrupt();
 						break;
 					}
 				}
+				// Every notification must reach the listeners, also the ones
+				// that came in while the previous ones were handled.
+				toNotify.addAll(childs);
 			}
 			// Notify our childs.
 			for (Listener child : toNotify) {
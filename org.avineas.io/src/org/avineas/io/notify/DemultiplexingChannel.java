@@ -0,0 +1,278 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.notify;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+import org.avineas.io.buffer.BufferPool;
+
+/**
+ * Demultiplexer of a channel that is shared by multiple consumers. Packets read from the
+ * wrapped channel are routed, based on a key extracted from the packet, to a channel that
+ * is specific for that key. Consumers only see (and are only notified about) their own
+ * packets. Writes of all keyed channels are serialized on the wrapped channel.
+ * <br/>
+ * Listeners of the keyed channels are called on the reading thread of the demultiplexer and
+ * should therefore return quickly, like {@link EventCounter} does.
+ * <br/>
+ * The number of packets waiting per key is bounded, see {@link #setMaxQueued(int)}. Packets
+ * that arrive for a full queue are dropped.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class DemultiplexingChannel<K> implements Closeable {
+	private static final long MAXBACKOFF = 1000;
+	private int maxSize;
+	private BufferPool pool = BufferPool.getDefault();
+	private Channel delegate;
+	private KeyExtractor<K> extractor;
+	private Map<K, KeyedChannel> channels = new HashMap<K, KeyedChannel>();
+	private Object writeLock = new Object();
+	private Thread thread;
+	private int dropped;
+	private volatile int maxQueued = 1000;
+
+	/**
+	 * Demultiplex a channel.
+	 *
+	 * @param wrapped The channel that is shared
+	 * @param maxSize The max. size of packets that can appear on the wrapped channel
+	 * @param extractor The extractor of the key from the packets read
+	 */
+	public DemultiplexingChannel(Channel wrapped, int maxSize, KeyExtractor<K> extractor) {
+		this.maxSize = maxSize;
+		this.delegate = wrapped;
+		this.extractor = extractor;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_read();
+			}
+		}, "Demultiplexer-" + wrapped.toString());
+		thread.start();
+	}
+
+	void _read() {
+		long backoff = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				byte[] data = pool.acquire(maxSize);
+				int size = delegate.read(data, 0, Long.MAX_VALUE);
+				if (size < 0) {
+					pool.release(data);
+					// Errors are passed to all consumers, they may all be interested. A channel
+					// that keeps failing, like a closed one, is read again with an increasing
+					// delay and its errors are passed once until a read succeeds again.
+					if (backoff == 0) {
+						for (KeyedChannel channel : getChannels()) {
+							channel.add(new ReadEntry(null, size));
+						}
+					}
+					backoff = (backoff == 0) ? 1 : Math.min(2 * backoff, MAXBACKOFF);
+					Thread.sleep(backoff);
+					continue;
+				}
+				backoff = 0;
+				if (size == 0) {
+					pool.release(data);
+					continue;
+				}
+				K key = extractor.getKey(data, size);
+				KeyedChannel channel = null;
+				if (key != null) {
+					synchronized (channels) {
+						channel = channels.get(key);
+					}
+				}
+				if (channel == null) {
+					pool.release(data);
+					synchronized (channels) {
+						dropped++;
+					}
+					continue;
+				}
+				if (!channel.add(new ReadEntry(data, size))) {
+					pool.release(data);
+					synchronized (channels) {
+						dropped++;
+					}
+				}
+			} catch (Exception exc) {
+				break;
+			}
+		}
+	}
+
+	private List<KeyedChannel> getChannels() {
+		synchronized (channels) {
+			return new ArrayList<KeyedChannel>(channels.values());
+		}
+	}
+
+	/**
+	 * Get the channel for a specific key. The channel is created if it doesn't exist yet.
+	 * Packets for keys that don't have a channel are dropped.
+	 *
+	 * @param key The key to get the channel for
+	 * @return The channel for the key. Closing this channel removes it from the demultiplexer
+	 */
+	public NotifyingChannel getChannel(K key) {
+		synchronized (channels) {
+			KeyedChannel channel = channels.get(key);
+			if (channel == null) {
+				channel = new KeyedChannel(key);
+				channels.put(key, channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Set the maximum number of packets that may wait per key.
+	 *
+	 * @param maxQueued The maximum number of packets, defaults to 1000
+	 */
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Get the number of packets that were dropped since no channel was present for
+	 * their key or since the queue of their key was full.
+	 *
+	 * @return The number of dropped packets
+	 */
+	public int getDropped() {
+		synchronized (channels) {
+			return dropped;
+		}
+	}
+
+	int write(byte[] data, int length) {
+		synchronized (writeLock) {
+			return delegate.write(data, length);
+		}
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		thread.interrupt();
+		delegate.close();
+		for (KeyedChannel channel : getChannels()) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Channel for a single key. Has its own queue and its own listeners.
+	 */
+	private class KeyedChannel implements NotifyingChannel {
+		private K key;
+		private List<ReadEntry> entries = new ArrayList<ReadEntry>();
+		private Set<Listener> listeners = new HashSet<Listener>();
+		private boolean closed;
+
+		KeyedChannel(K key) {
+			this.key = key;
+		}
+
+		boolean add(ReadEntry entry) {
+			List<Listener> toNotify;
+			synchronized (entries) {
+				if (closed || entries.size() >= maxQueued) return false;
+				entries.add(entry);
+				entries.notifyAll();
+				toNotify = new ArrayList<Listener>(listeners);
+			}
+			for (Listener listener : toNotify) {
+				try {
+					listener.checkChannel();
+				} catch (Exception exc) {}
+			}
+			return true;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, long timeout) {
+			synchronized (entries) {
+				if (closed) return -1;
+				if (entries.size() <= 0 && timeout > 0) {
+					try {
+						entries.wait(timeout);
+					} catch (InterruptedException exc) {
+						Thread.currentThread().interrupt();
+						return -1;
+					}
+				}
+				if (closed) return -1;
+				if (entries.size() <= 0) return 0;
+				ReadEntry entry = entries.remove(0);
+				int size = entry.getSize();
+				if (size >= 0) {
+					System.arraycopy(entry.getData(), 0, data, offset, size);
+				}
+				pool.release(entry.getData());
+				return size;
+			}
+		}
+
+		@Override
+		public int write(byte[] data, int length) {
+			return DemultiplexingChannel.this.write(data, length);
+		}
+
+		@Override
+		public void notify(Listener toNotify) {
+			synchronized (entries) {
+				listeners.add(toNotify);
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (channels) {
+				if (channels.get(key) == this) {
+					channels.remove(key);
+				}
+			}
+			// Wake up the blocked readers and give the queued packets back.
+			synchronized (entries) {
+				closed = true;
+				for (ReadEntry entry : entries) {
+					pool.release(entry.getData());
+				}
+				entries.clear();
+				entries.notifyAll();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString() + "/" + key;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.notify;
+
+/**
+ * Extractor of a key from a packet. Used by {@link DemultiplexingChannel} to determine
+ * to which consumer a packet that is read from a shared channel belongs.
+ *
+ * @author Arie van Wijngaarden
+ */
+public interface KeyExtractor<K> {
+	/**
+	 * Get the key of a packet.
+	 *
+	 * @param data The packet data
+	 * @param size The size of the packet in the data buffer
+	 * @return The key of the packet. Null if the key cannot be determined, in which
+	 * case the packet is dropped
+	 */
+	public K getKey(byte[] data, int size);
+}
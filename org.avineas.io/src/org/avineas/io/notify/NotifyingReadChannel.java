@@ -20,18 +20,36 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.avineas.io.ReadChannel;
+import org.avineas.io.buffer.BufferPool;
+import org.avineas.io.helper.WaitStrategy;
+import org.avineas.io.stat.Histogram;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+import org.avineas.io.trace.ChannelTracer;
 
 /**
  * Wrapper around another channel to add notification to a read channel. This means that
  * this object can notify objects about data that is available on the channel.
+ * <br/>
+ * Readers normally block until the reading thread hands over a packet. With a polling
+ * {@link WaitStrategy} readers poll for packets instead, which saves the wake up latency at the
+ * cost of processor time. The statistics contain a histogram of the hand over latency, in us, 
+ * from the moment a packet was read from the wrapped channel until it was taken by a reader.
  * 
  * @author Arie van Wijngaarden
  */
-public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel, Notifier {
+public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel, Notifier, 
+		StatisticsProvider {
 	private int maxSize;
+	private BufferPool pool = BufferPool.getDefault();
 	private C delegate;
 	private CompoundNotifier notify = new CompoundNotifier();
 	private List<ReadEntry> entries = new ArrayList<ReadEntry>();
+	private volatile int available;
+	private volatile WaitStrategy strategy = WaitStrategy.BLOCKING;
+	private SimpleStatistics statistics = new SimpleStatistics(0, null);
+	private Histogram handoff = new Histogram(24);
 	private Thread thread;
 	
 	/**
@@ -44,6 +62,7 @@ public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel,
 	public NotifyingReadChannel(C wrapped, int maxSize) {
 		this.maxSize = maxSize;
 		this.delegate = wrapped;
+		statistics.setExtra("handoffLatency", handoff);
 		thread = new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -56,13 +75,14 @@ public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel,
 		while (!Thread.currentThread().isInterrupted()) {
 			try {
 				// Read without timeout from the channel below.
-				byte[] data = new byte[maxSize];
+				byte[] data = pool.acquire(maxSize);
 				int size = delegate.read(data, 0, Long.MAX_VALUE);
 				// Create a read entry. Note that this is also done when
 				// the read indicates an error (since these must be passed as well)
 				ReadEntry entry = new ReadEntry(data, size);
 				synchronized (entries) {
 					entries.add(entry);
+					available = entries.size();
 					entries.notifyAll();
 				}
 				notify.notifyChilds();
@@ -72,8 +92,40 @@ public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel,
 		}
 	}
 	
+	/**
+	 * Set the way readers wait for packets.
+	 * 
+	 * @param strategy The strategy, defaults to {@link WaitStrategy#BLOCKING}
+	 */
+	public void setWaitStrategy(WaitStrategy strategy) {
+		this.strategy = strategy;
+	}
+	
+	/**
+	 * Poll for a packet according to the wait strategy.
+	 * 
+	 * @param timeout The timeout of the read
+	 * @return The remaining timeout
+	 */
+	private long poll(long timeout) {
+		long started = System.currentTimeMillis();
+		long deadline = WaitStrategy.getDeadline(timeout);
+		for (int cnt = 0; available <= 0 && strategy.idle(cnt, deadline); cnt++);
+		return timeout - (System.currentTimeMillis() - started);
+	}
+	
 	@Override
 	public int read(byte[] data, int offset, long timeout) {
+		long begin = ChannelTracer.begin();
+		int size = take(data, offset, timeout);
+		ChannelTracer.endRead(delegate, begin, size);
+		return size;
+	}
+	
+	private int take(byte[] data, int offset, long timeout) {
+		if (timeout > 0 && available <= 0 && !strategy.isBlocking()) {
+			timeout = poll(timeout);
+		}
 		synchronized (entries) {
 			if (entries.size() <= 0 && timeout > 0) {
 				try {
@@ -83,10 +135,17 @@ public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel,
 					return -1;
 				}
 			}
-			if (entries.size() <= 0) return 0;
+			if (entries.size() <= 0) {
+				statistics.timeout();
+				return 0;
+			}
 			ReadEntry entry = entries.get(0);
 			entries.remove(0);
+			available = entries.size();
+			handoff.add((System.nanoTime() - entry.getArrived()) / 1000L);
 			int size = entry.getSize();
+			if (size < 0) statistics.error();
+			else statistics.read();
 			if (size >= 0) {
 			    // Note that an array out of bounds exception may occur here
 			    // when the buffer passed isn't large enough. But otherwise for
@@ -94,6 +153,7 @@ public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel,
 			    // would not be guaranteed to be in one buffer.
 				System.arraycopy(entry.getData(), 0, data, offset, size);
 			}
+			pool.release(entry.getData());
 			return size;
 		}
 	}
@@ -110,25 +170,22 @@ public class NotifyingReadChannel<C extends ReadChannel> implements ReadChannel,
 		this.notify.add(toNotify);
 	}
 	
-	C getDelegate() {
-		return this.delegate;
-	}
-}
-
-class ReadEntry {
-	private byte[] data;
-	private int size;
-	
-	ReadEntry(byte[] data, int size) {
-		this.data = data;
-		this.size = size;
+	@Override
+	public Statistics getStatistics() {
+		synchronized (entries) {
+			return statistics;
+		}
 	}
 	
-	byte[] getData() {
-		return data;
+	@Override
+	public void resetCounters() {
+		synchronized (entries) {
+			statistics.reset();
+			handoff.reset();
+		}
 	}
 	
-	int getSize() {
-		return size;
+	C getDelegate() {
+		return this.delegate;
 	}
 }
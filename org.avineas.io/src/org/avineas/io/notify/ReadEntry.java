@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.notify;
+
+/**
+ * Packet (or error) read by a reading thread that is waiting to be taken by a reader.
+ *
+ * @author Arie van Wijngaarden
+ */
+class ReadEntry {
+	private byte[] data;
+	private int size;
+	private long arrived;
+	
+	ReadEntry(byte[] data, int size) {
+		this.data = data;
+		this.size = size;
+		this.arrived = System.nanoTime();
+	}
+	
+	byte[] getData() {
+		return data;
+	}
+	
+	int getSize() {
+		return size;
+	}
+	
+	long getArrived() {
+		return arrived;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.pipeline;
+
+import java.io.IOException;
+
+import org.avineas.io.ReadChannel;
+import org.avineas.io.WriteChannel;
+import org.avineas.io.helper.PacketDumper;
+
+/**
+ * Pipeline stage that dumps the packets passing it, one line per packet. Incoming packets
+ * are prefixed with &lt;, outgoing ones with &gt;.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class CaptureStage implements InboundHandler, OutboundHandler {
+	private Appendable out;
+	private String name;
+
+	/**
+	 * Capture the traffic of a pipeline.
+	 *
+	 * @param out The destination of the dump, like System.out or a writer
+	 * @param name The name to put in front of each line
+	 */
+	public CaptureStage(Appendable out, String name) {
+		this.out = out;
+		this.name = name;
+	}
+
+	private void capture(String direction, byte[] data, int offset, int size) {
+		StringBuffer line = PacketDumper.dump(name + " " + direction, data, offset, size);
+		line.append(System.getProperty("line.separator"));
+		synchronized (out) {
+			try {
+				out.append(line);
+			} catch (IOException exc) {}
+		}
+	}
+
+	@Override
+	public int read(ReadChannel next, byte[] data, int offset, long timeout) {
+		int size = next.read(data, offset, timeout);
+		if (size > 0) {
+			capture("<", data, offset, size);
+		}
+		return size;
+	}
+
+	@Override
+	public int write(WriteChannel next, byte[] data, int length) {
+		capture(">", data, 0, length);
+		return next.write(data, length);
+	}
+
+	@Override
+	public boolean flush(WriteChannel next) {
+		return true;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.pipeline;
+
+import org.avineas.io.WriteChannel;
+import org.avineas.io.helper.CoalescingBuffer;
+
+/**
+ * Pipeline stage that coalesces small writes, the pipeline variant of
+ * {@link org.avineas.io.filter.CoalescingWriteChannel}; both use a {@link CoalescingBuffer}.
+ * Since the stage has no thread of its own, buffered data is only passed on when the buffer
+ * fills up, when the pipeline is flushed or, if a deadline is set, by the first write after the
+ * deadline has passed. Only use this on stream oriented channels since packet boundaries are
+ * lost.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class CoalescingStage implements OutboundHandler {
+	private CoalescingBuffer buffer;
+
+	/**
+	 * Coalesce writes.
+	 *
+	 * @param threshold The number of bytes that are buffered at most
+	 * @param deadline The time, in microseconds, after which buffered data is passed on
+	 * with the next write. A value <= 0 means no deadline
+	 */
+	public CoalescingStage(int threshold, long deadline) {
+		this.buffer = new CoalescingBuffer(threshold, deadline);
+	}
+
+	@Override
+	public synchronized int write(WriteChannel next, byte[] data, int length) {
+		return buffer.write(next, data, length);
+	}
+
+	@Override
+	public synchronized boolean flush(WriteChannel next) {
+		return buffer.flush(next);
+	}
+}
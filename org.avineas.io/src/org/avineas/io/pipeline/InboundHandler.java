@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.pipeline;
+
+import org.avineas.io.ReadChannel;
+
+/**
+ * Handler of data that is read via a pipeline. The handler is called on the thread of the
+ * reader and works in place on the buffer of the reader.
+ *
+ * @author Arie van Wijngaarden
+ */
+public interface InboundHandler extends Handler {
+	/**
+	 * Read via this handler. The handler normally reads from the next stage and inspects
+	 * or changes the data that was read.
+	 *
+	 * @param next The next stage, towards the channel
+	 * @param data The buffer of the reader
+	 * @param offset The offset in the buffer
+	 * @param timeout The timeout as passed by the reader
+	 * @return The number of bytes read, with the same meaning as {@link ReadChannel#read}
+	 */
+	public int read(ReadChannel next, byte[] data, int offset, long timeout);
+}
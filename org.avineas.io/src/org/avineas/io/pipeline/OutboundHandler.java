@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.pipeline;
+
+import org.avineas.io.WriteChannel;
+
+/**
+ * Handler of data that is written via a pipeline. The handler is called on the thread of the
+ * writer and works in place on the buffer of the writer.
+ *
+ * @author Arie van Wijngaarden
+ */
+public interface OutboundHandler extends Handler {
+	/**
+	 * Write via this handler. The handler normally inspects the data and passes it to the
+	 * next stage.
+	 *
+	 * @param next The next stage, towards the channel
+	 * @param data The data to write
+	 * @param length The length of the data
+	 * @return The number of bytes written, -1 on error
+	 */
+	public int write(WriteChannel next, byte[] data, int length);
+
+	/**
+	 * Pass any data that is held by this handler to the next stage.
+	 *
+	 * @param next The next stage, towards the channel
+	 * @return True if the data was passed, false on error
+	 */
+	public boolean flush(WriteChannel next);
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+import org.avineas.io.ReadChannel;
+import org.avineas.io.WriteChannel;
+import org.avineas.io.notify.Notifier;
+import org.avineas.io.notify.NotifyingReadChannel;
+import org.avineas.io.notify.NotifyingChannel;
+
+/**
+ * Channel that passes reads and writes through an ordered chain of handlers before they reach
+ * the wrapped channel. All handlers run on the thread of the caller and work in place on the
+ * buffer of the caller, so a stack of handlers costs no extra copies and no extra threads, unlike
+ * nesting channel wrappers.
+ * <br/>
+ * Handlers are added from the channel outwards: the first handler added is closest to the
+ * channel. So data read passes the handlers first to last and data written passes them last
+ * to first.
+ * <br/>
+ * Notification is not done by a handler, since it needs a thread reading ahead. If the wrapped
+ * channel is a {@link Notifier}, like a {@link org.avineas.io.notify.NotifyingChannelWrapper},
+ * listeners are registered with that channel. Otherwise the first listener registered starts a
+ * {@link NotifyingReadChannel} between the channel and the handlers, which reads ahead with its
+ * own thread.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class Pipeline implements NotifyingChannel {
+	private static final int DEFAULTSIZE = 65536;
+	private Channel channel;
+	private int maxSize;
+	private NotifyingReadChannel<Channel> readAhead;
+	private List<Handler> handlers = new ArrayList<Handler>();
+	private volatile ReadChannel reader;
+	private volatile WriteChannel writer;
+	private volatile WriteNode[] flushers = new WriteNode[0];
+
+	/**
+	 * Create a pipeline, without handlers, for a channel.
+	 *
+	 * @param channel The channel at the end of the pipeline
+	 */
+	public Pipeline(Channel channel) {
+		this(channel, DEFAULTSIZE);
+	}
+
+	/**
+	 * Create a pipeline, without handlers, for a channel.
+	 *
+	 * @param channel The channel at the end of the pipeline
+	 * @param maxSize The max. size of packets on the channel. Only used when notification is
+	 * requested and the channel is not a notifier itself
+	 */
+	public Pipeline(Channel channel, int maxSize) {
+		this.channel = channel;
+		this.maxSize = maxSize;
+		this.reader = channel;
+		this.writer = channel;
+	}
+
+	/**
+	 * Add a handler at the outer end of the pipeline, that is, the furthest from the channel.
+	 *
+	 * @param handler The handler to add, an inbound handler, an outbound handler or both
+	 * @return This pipeline
+	 */
+	public synchronized Pipeline add(Handler handler) {
+		handlers.add(handler);
+		build();
+		return this;
+	}
+
+	/**
+	 * Get the first handler of a specific type.
+	 *
+	 * @param type The type of handler
+	 * @return The handler, or null if no handler of the type is present
+	 */
+	public synchronized <H extends Handler> H getHandler(Class<H> type) {
+		for (Handler handler : handlers) {
+			if (type.isInstance(handler)) return type.cast(handler);
+		}
+		return null;
+	}
+
+	private void build() {
+		ReadChannel read = (readAhead != null) ? readAhead : channel;
+		WriteChannel write = channel;
+		List<WriteNode> nodes = new ArrayList<WriteNode>();
+		for (Handler handler : handlers) {
+			if (handler instanceof InboundHandler) {
+				read = new ReadNode((InboundHandler) handler, read);
+			}
+			if (handler instanceof OutboundHandler) {
+				WriteNode node = new WriteNode((OutboundHandler) handler, write);
+				nodes.add(0, node);
+				write = node;
+			}
+		}
+		flushers = nodes.toArray(new WriteNode[nodes.size()]);
+		reader = read;
+		writer = write;
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		return reader.read(data, offset, timeout);
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		return writer.write(data, length);
+	}
+
+	/**
+	 * Let all outbound handlers pass the data they hold towards the channel.
+	 *
+	 * @return True if all data was passed, false if one of the handlers failed
+	 */
+	public boolean flush() {
+		boolean ok = true;
+		for (WriteNode node : flushers) {
+			if (!node.flush()) {
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	@Override
+	public synchronized void notify(Listener toNotify) {
+		if (channel instanceof Notifier) {
+			((Notifier) channel).notify(toNotify);
+			return;
+		}
+		if (readAhead == null) {
+			readAhead = new NotifyingReadChannel<Channel>(channel, maxSize);
+			build();
+		}
+		readAhead.notify(toNotify);
+	}
+
+	@Override
+	@PreDestroy
+	public void close() throws IOException {
+		flush();
+		NotifyingReadChannel<Channel> ahead;
+		synchronized (this) {
+			ahead = readAhead;
+		}
+		if (ahead != null) {
+			// Closes the channel as well.
+			ahead.close();
+		}
+		else {
+			channel.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return channel.toString();
+	}
+
+	private static class ReadNode implements ReadChannel {
+		private InboundHandler handler;
+		private ReadChannel next;
+
+		ReadNode(InboundHandler handler, ReadChannel next) {
+			this.handler = handler;
+			this.next = next;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, long timeout) {
+			return handler.read(next, data, offset, timeout);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class WriteNode implements WriteChannel {
+		private OutboundHandler handler;
+		private WriteChannel next;
+
+		WriteNode(OutboundHandler handler, WriteChannel next) {
+			this.handler = handler;
+			this.next = next;
+		}
+
+		@Override
+		public int write(byte[] data, int length) {
+			return handler.write(next, data, length);
+		}
+
+		boolean flush() {
+			return handler.flush(next);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.pipeline;
+
+import org.avineas.io.ReadChannel;
+import org.avineas.io.WriteChannel;
+import org.avineas.io.stat.RollingStatistics;
+import org.avineas.io.stat.SimpleStatistics;
+import org.avineas.io.stat.Statistics;
+import org.avineas.io.stat.StatisticsProvider;
+
+/**
+ * Pipeline stage that counts the reads, writes, errors and timeouts passing it. The number of
+ * bytes read and written are present as extra statistics, as is the history of the last hour
+ * per second. The latency in the history is the time, in us, the writes took, since the time
+ * of a read mostly consists of waiting for data.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class StatisticsStage implements InboundHandler, OutboundHandler, StatisticsProvider {
+	private SimpleStatistics statistics = new SimpleStatistics(0, 0);
+	private long bytesRead;
+	private long bytesWritten;
+	private RollingStatistics history = new RollingStatistics();
+
+	public StatisticsStage() {
+		statistics.setExtra("history", history);
+		updateExtras();
+	}
+
+	/**
+	 * Get the history of the last hour.
+	 *
+	 * @return The per second history
+	 */
+	public RollingStatistics getHistory() {
+		return history;
+	}
+
+	private void updateExtras() {
+		statistics.setExtra("bytesRead", bytesRead);
+		statistics.setExtra("bytesWritten", bytesWritten);
+	}
+
+	@Override
+	public int read(ReadChannel next, byte[] data, int offset, long timeout) {
+		int size = next.read(data, offset, timeout);
+		synchronized (this) {
+			if (size < 0) {
+				statistics.error();
+				history.error();
+			}
+			else if (size == 0) {
+				statistics.timeout();
+				history.timeout();
+			}
+			else {
+				statistics.read();
+				history.read(size, -1);
+				bytesRead += size;
+				updateExtras();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public int write(WriteChannel next, byte[] data, int length) {
+		long started = System.nanoTime();
+		int size = next.write(data, length);
+		long latency = (System.nanoTime() - started) / 1000L;
+		synchronized (this) {
+			if (size < 0) {
+				statistics.error();
+				history.error();
+			}
+			else {
+				statistics.written();
+				history.written(length, latency);
+				bytesWritten += length;
+				updateExtras();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public boolean flush(WriteChannel next) {
+		return true;
+	}
+
+	@Override
+	public synchronized Statistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized void resetCounters() {
+		statistics.reset();
+		history.reset();
+		bytesRead = 0;
+		bytesWritten = 0;
+		updateExtras();
+	}
+}
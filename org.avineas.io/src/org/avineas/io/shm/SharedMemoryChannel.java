@@ -0,0 +1,305 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * Channel between two processes on the same machine via a memory mapped file. The file
+ * contains two rings, one for each direction. One side creates the file, the other side opens
+ * it. Waiting for data (or space) is done by polling according to a {@link WaitStrategy},
+ * by default spinning for a short time and then parking with increasing intervals, so no system
+ * calls are needed while traffic is flowing.
+ * <br/>
+ * The channel is packet oriented: every read returns exactly one written packet.
+ * <br/>
+ * Both sides write a heartbeat in the file header. When the peer closes the channel or stops
+ * beating for longer than the peer timeout, reads and writes return -1, so a reconnecting
+ * provider can open the channel again. The creator never truncates an existing file: a new
+ * file is built next to it and renamed over the old one, so a peer that still has the old file
+ * mapped keeps a valid mapping and notices that its creator is gone.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class SharedMemoryChannel implements Channel {
+	private static final int MAGIC = 0x504c434a;
+	private static final int MAGICOFFSET = 0;
+	private static final int CAPACITYOFFSET = 4;
+	private static final int READYOFFSET = 8;
+	private static final int GENERATIONOFFSET = 16;
+	// Heartbeats are on their own cache line: 0 is not connected (yet), -1 is closed,
+	// otherwise the time in ms of the last beat.
+	private static final int CREATORBEATOFFSET = 64;
+	private static final int OPENERBEATOFFSET = 72;
+	private static final int HEADERSIZE = 128;
+	private static final long MAXPARK = 1000000L;
+	private static final long BEATINTERVAL = 250;
+	private static final Random random = new Random();
+	private File file;
+	private boolean owner;
+	private long generation;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int beatOffset;
+	private int peerBeatOffset;
+	private SharedMemoryRing in;
+	private SharedMemoryRing out;
+	private Thread beater;
+	private long writeTimeout = 5000;
+	private volatile long peerTimeout = 3000;
+	private volatile WaitStrategy strategy = WaitStrategy.BACKOFF;
+	private volatile boolean closed;
+
+	/**
+	 * Create or open a shared memory channel.
+	 *
+	 * @param file The file to map, normally in /dev/shm
+	 * @param capacity The capacity in bytes of each direction. Only used when creating
+	 * @param create True if the file must be created, false if it must be opened. The
+	 * creator replaces an existing file and removes the file when the channel is closed
+	 * @throws IOException In case of errors, if the opened file is not a channel file or if
+	 * its creator is not alive
+	 */
+	public SharedMemoryChannel(File file, int capacity, boolean create) throws IOException {
+		this.file = file;
+		this.owner = create;
+		int size = (capacity + 3) & ~3;
+		if (!create && !file.exists()) throw new IOException(file + " does not exist");
+		File mapped = create ? File.createTempFile(file.getName(), ".tmp", file.getParentFile()) : file;
+		raf = new RandomAccessFile(mapped, "rw");
+		try {
+			if (create) {
+				raf.setLength(HEADERSIZE + 2 * (SharedMemoryRing.HEADERSIZE + size));
+			}
+			else {
+				if (raf.length() < HEADERSIZE) throw new IOException(file + " is not initialized");
+				int magic = raf.readInt();
+				if (magic != MAGIC) throw new IOException(file + " is not a channel file");
+				size = raf.readInt();
+			}
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			SharedMemoryRing first = new SharedMemoryRing(buffer, HEADERSIZE, size);
+			SharedMemoryRing second = new SharedMemoryRing(buffer,
+				HEADERSIZE + SharedMemoryRing.HEADERSIZE + size, size);
+			if (create) {
+				first.clear();
+				second.clear();
+				synchronized (random) {
+					generation = random.nextLong();
+				}
+				buffer.putInt(CAPACITYOFFSET, size);
+				buffer.putInt(MAGICOFFSET, MAGIC);
+				buffer.putLong(GENERATIONOFFSET, generation);
+				buffer.putLong(OPENERBEATOFFSET, 0);
+				buffer.putLong(CREATORBEATOFFSET, System.currentTimeMillis());
+				buffer.putInt(READYOFFSET, 1);
+				// Only a completely initialized file becomes visible under the real name.
+				if (!mapped.renameTo(file)) throw new IOException("cannot rename " + mapped + " to " + file);
+				beatOffset = CREATORBEATOFFSET;
+				peerBeatOffset = OPENERBEATOFFSET;
+				out = first;
+				in = second;
+			}
+			else {
+				if (buffer.getInt(READYOFFSET) != 1) throw new IOException(file + " is not ready");
+				long beat = buffer.getLong(CREATORBEATOFFSET);
+				if (beat <= 0 || System.currentTimeMillis() - beat > peerTimeout) {
+					throw new IOException(file + " has no living creator");
+				}
+				generation = buffer.getLong(GENERATIONOFFSET);
+				beatOffset = OPENERBEATOFFSET;
+				peerBeatOffset = CREATORBEATOFFSET;
+				buffer.putLong(beatOffset, System.currentTimeMillis());
+				out = second;
+				in = first;
+			}
+		} catch (IOException exc) {
+			raf.close();
+			if (create) {
+				mapped.delete();
+			}
+			throw exc;
+		}
+		beater = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				beat();
+			}
+		}, "Heartbeat-" + file);
+		beater.setDaemon(true);
+		beater.start();
+	}
+
+	void beat() {
+		while (!closed) {
+			buffer.putLong(beatOffset, System.currentTimeMillis());
+			try {
+				Thread.sleep(BEATINTERVAL);
+			} catch (InterruptedException exc) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Check whether the peer has gone: it closed the channel or did not beat in time. A peer
+	 * that did not connect yet is not gone.
+	 */
+	private boolean peerGone() {
+		long beat = buffer.getLong(peerBeatOffset);
+		if (beat == 0) return false;
+		return beat < 0 || System.currentTimeMillis() - beat > peerTimeout;
+	}
+
+	/**
+	 * Check whether the peer has opened the channel.
+	 *
+	 * @return True if the peer opened the channel, also when it has gone since
+	 */
+	public boolean isPeerConnected() {
+		return buffer.getLong(peerBeatOffset) != 0;
+	}
+
+	/**
+	 * Wait a bit while polling. There is nothing to block on, so if the strategy is
+	 * exhausted, the maximum park time is used. Never waits beyond the deadline.
+	 *
+	 * @param iteration The number of times waited before
+	 * @param deadline The deadline in {@link System#nanoTime()} terms
+	 * @return False if the deadline has passed
+	 */
+	private boolean idle(int iteration, long deadline) {
+		if (strategy.idle(iteration, deadline)) return true;
+		long left = deadline - System.nanoTime();
+		if (left <= 0) return false;
+		LockSupport.parkNanos(Math.min(left, MAXPARK));
+		return true;
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		synchronized (in) {
+			long deadline = WaitStrategy.getDeadline(timeout);
+			for (int cnt = 0; !closed; cnt++) {
+				int size = in.poll(data, offset);
+				if (size >= 0) return size;
+				if (Thread.currentThread().isInterrupted()) return -1;
+				if ((cnt & 0xff) == 0 && peerGone()) return -1;
+				if (!idle(cnt, deadline)) return 0;
+			}
+			return -1;
+		}
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		if (length > out.getMaxSize()) return -1;
+		synchronized (out) {
+			long deadline = WaitStrategy.getDeadline(writeTimeout);
+			for (int cnt = 0; !closed; cnt++) {
+				if (out.offer(data, length)) return length;
+				if (Thread.currentThread().isInterrupted()) return -1;
+				if ((cnt & 0xff) == 0 && peerGone()) return -1;
+				if (!idle(cnt, deadline)) return -1;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Set the way of waiting for data or space in the rings.
+	 *
+	 * @param strategy The strategy, defaults to {@link WaitStrategy#BACKOFF}
+	 */
+	public void setWaitStrategy(WaitStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Set the time a write may wait for space in the ring before it fails.
+	 *
+	 * @param writeTimeout The timeout in ms, defaults to 5000
+	 */
+	public void setWriteTimeout(long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Set the time the peer may miss its heartbeat before the channel is considered closed.
+	 *
+	 * @param peerTimeout The timeout in ms, defaults to 3000
+	 */
+	public void setPeerTimeout(long peerTimeout) {
+		this.peerTimeout = peerTimeout;
+	}
+
+	/**
+	 * Check whether the file still is the one this channel created. It may have been
+	 * replaced by a new creator in the mean time.
+	 */
+	private boolean isOwnFile() {
+		try {
+			RandomAccessFile current = new RandomAccessFile(file, "r");
+			try {
+				if (current.length() < HEADERSIZE) return false;
+				current.seek(GENERATIONOFFSET);
+				return current.readLong() == generation;
+			} finally {
+				current.close();
+			}
+		} catch (IOException exc) {
+			return false;
+		}
+	}
+
+	@Override
+	@PreDestroy
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+		beater.interrupt();
+		try {
+			beater.join(BEATINTERVAL);
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		buffer.putLong(beatOffset, -1);
+		try {
+			raf.close();
+		} catch (Exception exc) {}
+		if (owner && isOwnFile()) {
+			file.delete();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Shared memory " + file;
+	}
+}
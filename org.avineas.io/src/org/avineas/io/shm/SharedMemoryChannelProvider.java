@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.shm;
+
+import java.io.File;
+
+import org.avineas.io.Channel;
+import org.avineas.io.ChannelProvider;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * Channel provider for shared memory channels. One process must act as creator of the
+ * channel, the other opens it. Both sides wait up to the time out for each other. The file
+ * is located in /dev/shm if present, otherwise in the temporary directory.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class SharedMemoryChannelProvider implements ChannelProvider {
+	private static final long POLLTIME = 10;
+	private File file;
+	private int capacity;
+	private boolean create;
+	private WaitStrategy strategy = WaitStrategy.BACKOFF;
+
+	/**
+	 * Construct a provider for a named shared memory channel.
+	 *
+	 * @param name The name of the channel, used as file name
+	 * @param capacity The capacity in bytes of each direction
+	 * @param create True if this side creates the channel, false if it opens it
+	 */
+	public SharedMemoryChannelProvider(String name, int capacity, boolean create) {
+		File dir = new File("/dev/shm");
+		if (!dir.isDirectory()) {
+			dir = new File(System.getProperty("java.io.tmpdir"));
+		}
+		this.file = new File(dir, name);
+		this.capacity = capacity;
+		this.create = create;
+	}
+
+	/**
+	 * Set the way of waiting for data of the channels provided.
+	 *
+	 * @param strategy The strategy, defaults to {@link WaitStrategy#BACKOFF}
+	 */
+	public void setWaitStrategy(WaitStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Wait a poll time.
+	 *
+	 * @return True if the wait time is over, false if the time out passed or if interrupted
+	 */
+	private static boolean pause(long started, long timeout) {
+		if (System.currentTimeMillis() - started >= timeout) return false;
+		try {
+			Thread.sleep(POLLTIME);
+			return true;
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public Channel getChannel(long timeout) {
+		long started = System.currentTimeMillis();
+		SharedMemoryChannel channel = null;
+		while (channel == null) {
+			try {
+				channel = new SharedMemoryChannel(file, capacity, create);
+				channel.setWaitStrategy(strategy);
+			} catch (Exception exc) {
+				// Only the opening side waits for the creator.
+				if (create || !pause(started, timeout)) return null;
+			}
+		}
+		// The creating side waits for the opener, so nothing is written into a ring that
+		// nobody reads.
+		while (create && !channel.isPeerConnected()) {
+			if (!pause(started, timeout)) {
+				channel.close();
+				return null;
+			}
+		}
+		return channel;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return "Shared memory " + file;
+	}
+}
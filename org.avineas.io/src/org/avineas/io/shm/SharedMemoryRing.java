@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.shm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single producer, single consumer ring of packets in a (shared memory) buffer. The ring
+ * consists of a read position, written by the consumer only, a write position, written by
+ * the producer only, and a data area. Packets are stored as a length followed by the data,
+ * aligned at 4 bytes. Positions only increase, the index in the data area is the position
+ * modulo the capacity.
+ *
+ * @author Arie van Wijngaarden
+ */
+class SharedMemoryRing {
+	// Read and write positions are on separate cache lines.
+	private static final int READOFFSET = 0;
+	private static final int WRITEOFFSET = 64;
+	private static final int DATAOFFSET = 128;
+	/** The size of the ring administration in front of the data area. */
+	static final int HEADERSIZE = DATAOFFSET;
+	private ByteBuffer buffer;
+	private int base;
+	private int capacity;
+	private volatile int barrier;
+
+	/**
+	 * Construct a ring at a specific place in a buffer.
+	 *
+	 * @param buffer The buffer containing the ring, normally a mapped file
+	 * @param base The offset of the ring in the buffer
+	 * @param capacity The capacity of the data area, a multiple of 4
+	 */
+	SharedMemoryRing(ByteBuffer buffer, int base, int capacity) {
+		this.buffer = buffer.duplicate();
+		this.base = base;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reset the ring to empty. Only to be done before the peer uses it.
+	 */
+	void clear() {
+		buffer.putLong(base + READOFFSET, 0);
+		buffer.putLong(base + WRITEOFFSET, 0);
+	}
+
+	/**
+	 * Make sure that memory access before this call is not reordered with memory access after
+	 * it. Is done via a volatile store followed by a volatile load, which the VM
+	 * implements with a full fence.
+	 */
+	private void fence() {
+		barrier = 0;
+		if (barrier != 0) {
+			barrier = 0;
+		}
+	}
+
+	private static int align(int size) {
+		return (size + 3) & ~3;
+	}
+
+	/**
+	 * Get the maximum packet size this ring can hold.
+	 *
+	 * @return The maximum size
+	 */
+	int getMaxSize() {
+		return capacity - 4;
+	}
+
+	private void put(long position, byte[] data, int length) {
+		int index = (int) (position % capacity);
+		int first = Math.min(length, capacity - index);
+		buffer.position(base + DATAOFFSET + index);
+		buffer.put(data, 0, first);
+		if (first < length) {
+			buffer.position(base + DATAOFFSET);
+			buffer.put(data, first, length - first);
+		}
+	}
+
+	private void get(long position, byte[] data, int offset, int length) {
+		int index = (int) (position % capacity);
+		int first = Math.min(length, capacity - index);
+		buffer.position(base + DATAOFFSET + index);
+		buffer.get(data, offset, first);
+		if (first < length) {
+			buffer.position(base + DATAOFFSET);
+			buffer.get(data, offset + first, length - first);
+		}
+	}
+
+	/**
+	 * Add a packet to the ring. May only be called by the producer.
+	 *
+	 * @param data The packet data
+	 * @param length The packet size
+	 * @return True if the packet was added, false if the ring is full
+	 */
+	boolean offer(byte[] data, int length) {
+		long write = buffer.getLong(base + WRITEOFFSET);
+		long read = buffer.getLong(base + READOFFSET);
+		int needed = 4 + align(length);
+		if (capacity - (write - read) < needed) return false;
+		buffer.putInt(base + DATAOFFSET + (int) (write % capacity), length);
+		put(write + 4, data, length);
+		fence();
+		buffer.putLong(base + WRITEOFFSET, write + needed);
+		return true;
+	}
+
+	/**
+	 * Take a packet from the ring. May only be called by the consumer.
+	 *
+	 * @param data The buffer to copy the packet in. If the packet doesn't fit, the
+	 * remainder is discarded
+	 * @param offset The offset in the buffer
+	 * @return The size of the packet copied, -1 if the ring is empty
+	 */
+	int poll(byte[] data, int offset) {
+		long read = buffer.getLong(base + READOFFSET);
+		long write = buffer.getLong(base + WRITEOFFSET);
+		if (read == write) return -1;
+		fence();
+		int length = buffer.getInt(base + DATAOFFSET + (int) (read % capacity));
+		int size = Math.min(length, data.length - offset);
+		get(read + 4, data, offset, size);
+		fence();
+		buffer.putLong(base + READOFFSET, read + 4 + align(length));
+		return size;
+	}
+}
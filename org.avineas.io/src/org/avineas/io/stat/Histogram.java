@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.stat;
+
+/**
+ * Histogram with buckets that double in size. Bucket 0 counts values of 0 (or less), bucket n
+ * counts the values from 2^(n-1) up to 2^n. The last bucket counts all values that are larger.
+ * Is typically used as extra statistic for sizes or delays.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class Histogram {
+	private long[] counts;
+	private long count;
+	private long sum;
+	private long max;
+
+	/**
+	 * Construct a histogram with a number of buckets.
+	 *
+	 * @param buckets The number of buckets, at least 2
+	 */
+	public Histogram(int buckets) {
+		counts = new long[Math.max(2, buckets)];
+	}
+
+	/**
+	 * Construct a histogram that is able to hold any long value.
+	 */
+	public Histogram() {
+		this(64);
+	}
+
+	/**
+	 * Get the bucket for a value.
+	 *
+	 * @param value The value
+	 * @param buckets The number of buckets present
+	 * @return The index of the bucket
+	 */
+	static int getBucket(long value, int buckets) {
+		if (value <= 0) return 0;
+		return Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/**
+	 * Add a value to the histogram.
+	 *
+	 * @param value The value to add
+	 */
+	public synchronized void add(long value) {
+		counts[getBucket(value, counts.length)]++;
+		count++;
+		sum += value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * Add all values of an other histogram to this one.
+	 *
+	 * @param other The histogram to add. Values in buckets that this histogram doesn't have
+	 * are added to the last bucket
+	 */
+	public void add(Histogram other) {
+		long[] otherCounts;
+		long otherCount, otherSum, otherMax;
+		synchronized (other) {
+			otherCounts = other.counts.clone();
+			otherCount = other.count;
+			otherSum = other.sum;
+			otherMax = other.max;
+		}
+		synchronized (this) {
+			for (int cnt = 0; cnt < otherCounts.length; cnt++) {
+				counts[Math.min(cnt, counts.length - 1)] += otherCounts[cnt];
+			}
+			count += otherCount;
+			sum += otherSum;
+			if (otherMax > max) max = otherMax;
+		}
+	}
+
+	/**
+	 * Get the counts of the buckets.
+	 *
+	 * @return A copy of the bucket counts
+	 */
+	public synchronized long[] getCounts() {
+		return counts.clone();
+	}
+
+	/**
+	 * Get the number of values added.
+	 *
+	 * @return The number of values
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the largest value added.
+	 *
+	 * @return The maximum value
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Get the mean of the values added.
+	 *
+	 * @return The mean, 0 if nothing was added
+	 */
+	public synchronized double getMean() {
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Get the value below which a fraction of the values is found. Since only the buckets are
+	 * known, the upper bound of the bucket is returned.
+	 *
+	 * @param fraction The fraction, like 0.99
+	 * @return The upper bound of the bucket the percentile is in
+	 */
+	public synchronized long getPercentile(double fraction) {
+		long needed = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int cnt = 0; cnt < counts.length; cnt++) {
+			seen += counts[cnt];
+			if (seen >= needed && seen > 0) {
+				return Math.min(max, (cnt == 0) ? 0 : (cnt >= 63) ? Long.MAX_VALUE : (1L << cnt) - 1);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Reset the histogram.
+	 */
+	public synchronized void reset() {
+		for (int cnt = 0; cnt < counts.length; cnt++) {
+			counts[cnt] = 0;
+		}
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("count=").append(count).append(" mean=").append((long) getMean())
+			.append(" max=").append(max);
+		for (int cnt = 0; cnt < counts.length; cnt++) {
+			if (counts[cnt] == 0) continue;
+			if (cnt == counts.length - 1 && cnt > 0) {
+				buffer.append(" >=").append(1L << Math.min(62, cnt - 1));
+			}
+			else {
+				buffer.append(" <").append(1L << cnt);
+			}
+			buffer.append(":").append(counts[cnt]);
+		}
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.stat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statistics of the recent past, kept as a ring of per second samples. By default the last
+ * hour is kept. Samples are only created for seconds with activity and are reused when the
+ * ring wraps. A sample, with its latency histogram, takes about 300 bytes, so a busy hour of
+ * history costs about 1 MB.
+ * <br/>
+ * Is typically present as extra statistic, for seeing recent throughput and latency trends
+ * that disappear in the lifetime totals.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class RollingStatistics {
+	private Sample[] ring;
+
+	/**
+	 * Construct rolling statistics.
+	 *
+	 * @param seconds The number of seconds of history to keep
+	 */
+	public RollingStatistics(int seconds) {
+		ring = new Sample[Math.max(1, seconds)];
+	}
+
+	/**
+	 * Construct rolling statistics for the last hour.
+	 */
+	public RollingStatistics() {
+		this(3600);
+	}
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000L;
+	}
+
+	private Sample current() {
+		long second = now();
+		int index = (int) (second % ring.length);
+		Sample sample = ring[index];
+		if (sample == null) {
+			sample = new Sample(second);
+			ring[index] = sample;
+		}
+		else if (sample.getTime() != second) {
+			sample.clear(second);
+		}
+		return sample;
+	}
+
+	/**
+	 * Register a read.
+	 *
+	 * @param bytes The number of bytes read
+	 * @param latency The latency of the read, in us. -1 if not known
+	 */
+	public synchronized void read(int bytes, long latency) {
+		current().read(bytes, latency);
+	}
+
+	/**
+	 * Register a write.
+	 *
+	 * @param bytes The number of bytes written
+	 * @param latency The latency of the write, in us. -1 if not known
+	 */
+	public synchronized void written(int bytes, long latency) {
+		current().written(bytes, latency);
+	}
+
+	public synchronized void error() {
+		current().error();
+	}
+
+	public synchronized void timeout() {
+		current().timeout();
+	}
+
+	/**
+	 * Get the samples of the last seconds. Seconds without activity are left out.
+	 *
+	 * @param seconds The number of seconds to get, including the current one
+	 * @return Copies of the samples, oldest first
+	 */
+	public synchronized List<Sample> getSamples(int seconds) {
+		long now = now();
+		List<Sample> samples = new ArrayList<Sample>();
+		for (long second = now - Math.min(seconds, ring.length) + 1; second <= now; second++) {
+			Sample sample = ring[(int) (second % ring.length)];
+			if (sample != null && sample.getTime() == second) {
+				samples.add(new Sample(sample));
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Get the totals over the last seconds.
+	 *
+	 * @param seconds The number of seconds, including the current one
+	 * @return The totals, as a sample starting at the first second
+	 */
+	public synchronized Sample getTotal(int seconds) {
+		seconds = Math.min(seconds, ring.length);
+		Sample total = new Sample(now() - seconds + 1);
+		for (Sample sample : getSamples(seconds)) {
+			total.add(sample);
+		}
+		return total;
+	}
+
+	/**
+	 * Clear the history.
+	 */
+	public synchronized void reset() {
+		for (int cnt = 0; cnt < ring.length; cnt++) {
+			ring[cnt] = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "last minute: " + getTotal(60);
+	}
+}
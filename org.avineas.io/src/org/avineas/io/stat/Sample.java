@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.stat;
+
+/**
+ * Statistics of a channel over a period of time, normally one second.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class Sample {
+	private long time;
+	private int reads;
+	private int writes;
+	private long bytesRead;
+	private long bytesWritten;
+	private int errors;
+	private int timeouts;
+	private Histogram latency = new Histogram(24);
+
+	Sample(long time) {
+		this.time = time;
+	}
+
+	Sample(Sample other) {
+		this.time = other.time;
+		add(other);
+	}
+
+	void clear(long time) {
+		this.time = time;
+		reads = 0;
+		writes = 0;
+		bytesRead = 0;
+		bytesWritten = 0;
+		errors = 0;
+		timeouts = 0;
+		latency.reset();
+	}
+
+	void add(Sample other) {
+		reads += other.reads;
+		writes += other.writes;
+		bytesRead += other.bytesRead;
+		bytesWritten += other.bytesWritten;
+		errors += other.errors;
+		timeouts += other.timeouts;
+		latency.add(other.latency);
+	}
+
+	void read(int bytes, long delay) {
+		reads++;
+		bytesRead += bytes;
+		if (delay >= 0) latency.add(delay);
+	}
+
+	void written(int bytes, long delay) {
+		writes++;
+		bytesWritten += bytes;
+		if (delay >= 0) latency.add(delay);
+	}
+
+	void error() {
+		errors++;
+	}
+
+	void timeout() {
+		timeouts++;
+	}
+
+	/**
+	 * Get the start of the period of this sample.
+	 *
+	 * @return The start time, in seconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public int getReads() {
+		return reads;
+	}
+
+	public int getWrites() {
+		return writes;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public int getErrors() {
+		return errors;
+	}
+
+	public int getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * Get the latencies of the operations in this sample.
+	 *
+	 * @return The latency histogram, in us
+	 */
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public String toString() {
+		return "reads=" + reads + " writes=" + writes + " bytesRead=" + bytesRead +
+			" bytesWritten=" + bytesWritten + " errors=" + errors + " timeouts=" + timeouts +
+			" latency=[" + latency + "]";
+	}
+}
@@ -21,6 +21,8 @@ import java.net.SocketTimeoutException;
 import javax.annotation.PreDestroy;
 
 import org.avineas.io.Channel;
+import org.avineas.io.trace.ChannelEvent;
+import org.avineas.io.trace.ChannelTracer;
 
 /**
  * Base channel for TCP connections. Is a wrapper for reading and writing 
@@ -30,19 +32,24 @@ import org.avineas.io.Channel;
  */
 class BaseTcpChannel implements Channel {
 	private Socket socket;
+	private String name;
 
 	BaseTcpChannel(Socket socket) {
 		this.socket = socket;
+		this.name = "TCP " + socket.getRemoteSocketAddress();
 	}
 	
 	/**
 	 * Close the socket currently available, if any.
 	 */
 	private synchronized void closeSocket() {
+		if (socket == null) return;
+		long begin = ChannelTracer.begin();
 		try {
 			socket.close();
 			socket = null;
 		} catch (Exception e) {}
+		ChannelTracer.end(ChannelEvent.Type.DISCONNECT, name, begin, 0, socket == null);
 	}
 	
 	/**
@@ -77,6 +84,7 @@ class BaseTcpChannel implements Channel {
 		} catch (Exception exc) {
 			return -1;
 		}
+		long begin = ChannelTracer.begin();
 		int size = 0;
 		try {
 			size = socket.getInputStream().read(data, offset, data.length - offset);
@@ -85,6 +93,7 @@ class BaseTcpChannel implements Channel {
 		} catch (Exception exc) {
 			size = -1;
 		}
+		ChannelTracer.endRead(name, begin, size);
 		if (size < 0) {
 			closeSocket();
 		}
@@ -95,12 +104,15 @@ class BaseTcpChannel implements Channel {
 	public int write(byte[] data, int length) {
 		Socket socket = getSocket();
 		if (socket == null) return -1;
+		long begin = ChannelTracer.begin();
 		try {
 			socket.getOutputStream().write(data, 0, length);
 		} catch (Exception exc) {
+			ChannelTracer.endWrite(name, begin, length, -1);
 			closeSocket();
 			return -1;
 		}
+		ChannelTracer.endWrite(name, begin, length, length);
 		return data.length;
 	}
 	
@@ -109,4 +121,9 @@ class BaseTcpChannel implements Channel {
 	public void close() {
 		closeSocket();
 	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
 }
\ No newline at end of file
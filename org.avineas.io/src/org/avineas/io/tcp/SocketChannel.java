@@ -32,4 +32,15 @@ public class SocketChannel extends TcpChannel {
 	public SocketChannel(String host, int port) {
 		super(new SocketChannelProvider(host, port));
 	}
+	
+	/**
+	 * Create a socket to a remote TCP port that is reachable via multiple hosts. Connects
+	 * to the addresses of the hosts are raced, the first to succeed is used.
+	 * 
+	 * @param hosts The host names or addresses to connect to
+	 * @param port The port at the remote hosts to connect to
+	 */
+	public SocketChannel(String[] hosts, int port) {
+		super(new SocketChannelProvider(hosts, port));
+	}
 }
@@ -15,34 +15,205 @@
  */
 package org.avineas.io.tcp;
 
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Channel provider for outgoing connection sockets. 
+ * Channel provider for outgoing connection sockets. If the hosts resolve to multiple
+ * addresses, connects to them are raced: a connect to the next address is started when the
+ * previous one failed or didn't succeed within a small stagger time, the first connection that
+ * succeeds is used and the others are cancelled. Addresses of the IPv6 and IPv4 families
+ * are tried alternately. As such, a dead address costs the stagger time instead of the
+ * full connect timeout. A connect timeout of 0 means no limit, as for a plain socket, with
+ * one or with multiple addresses.
  * 
  * @author Arie van Wijngaarden
  */
 public class SocketChannelProvider extends TcpChannelProvider {
-	private String host;
+	private String[] hosts;
 	private int port;
+	private long stagger = 250;
 	
 	public SocketChannelProvider(String host, int port) {
-		this.host = host;
+		this(new String[] {host}, port);
+	}
+	
+	/**
+	 * Construct a provider for a port that is reachable via multiple hosts, like
+	 * the addresses of redundant network interfaces of a device.
+	 * 
+	 * @param hosts The host names or addresses
+	 * @param port The port to connect to
+	 */
+	public SocketChannelProvider(String[] hosts, int port) {
+		this.hosts = hosts.clone();
 		this.port = port;
 	}
 	
+	/**
+	 * Set the time to wait for a connect before the connect to the next address
+	 * is started.
+	 * 
+	 * @param stagger The time in ms, defaults to 250
+	 */
+	public void setStagger(long stagger) {
+		this.stagger = stagger;
+	}
+	
+	/**
+	 * Resolve the hosts, alternating the address families.
+	 * 
+	 * @return The addresses to connect to
+	 * @throws Exception In case none of the hosts can be resolved
+	 */
+	private List<InetSocketAddress> resolve() throws Exception {
+		List<InetAddress> first = new ArrayList<InetAddress>();
+		List<InetAddress> second = new ArrayList<InetAddress>();
+		Exception error = null;
+		for (String host : hosts) {
+			try {
+				for (InetAddress address : InetAddress.getAllByName(host)) {
+					if (address instanceof Inet6Address) first.add(address);
+					else second.add(address);
+				}
+			} catch (Exception exc) {
+				error = exc;
+			}
+		}
+		if (first.isEmpty() && second.isEmpty() && error != null) throw error;
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (int cnt = 0; cnt < Math.max(first.size(), second.size()); cnt++) {
+			if (cnt < first.size()) addresses.add(new InetSocketAddress(first.get(cnt), port));
+			if (cnt < second.size()) addresses.add(new InetSocketAddress(second.get(cnt), port));
+		}
+		return addresses;
+	}
+	
 	@Override
 	protected Socket connect(long timeout) throws Exception {
-		Socket socket = new Socket(host, port);
-		return socket;
+		// Negative timeouts mean no limit as well.
+		timeout = Math.max(timeout, 0);
+		List<InetSocketAddress> addresses = resolve();
+		if (addresses.size() == 1) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(addresses.get(0), BaseTcpChannel.getTimeout(timeout));
+			} catch (Exception exc) {
+				socket.close();
+				throw exc;
+			}
+			return socket;
+		}
+		return new Race(addresses).run(timeout);
 	}
 	
 	@Override
 	public String toString() {
-		return "Socket " + host + "/" + port;
+		StringBuffer buffer = new StringBuffer("Socket ");
+		for (int cnt = 0; cnt < hosts.length; cnt++) {
+			if (cnt > 0) buffer.append(",");
+			buffer.append(hosts[cnt]);
+		}
+		return buffer.append("/").append(port).toString();
 	}
 
 	@Override
 	public void close() {
 	}
+	
+	/**
+	 * Race of connects to a number of addresses.
+	 */
+	private class Race {
+		private List<InetSocketAddress> addresses;
+		private List<Socket> sockets = new ArrayList<Socket>();
+		private BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		private boolean done;
+		
+		Race(List<InetSocketAddress> addresses) {
+			this.addresses = addresses;
+		}
+		
+		private void start(final InetSocketAddress address, final long timeout) {
+			final Socket socket = new Socket();
+			synchronized (this) {
+				sockets.add(socket);
+			}
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					attempt(socket, address, timeout);
+				}
+			}, "Connect-" + address);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		void attempt(Socket socket, InetSocketAddress address, long timeout) {
+			try {
+				socket.connect(address, BaseTcpChannel.getTimeout(timeout));
+				synchronized (this) {
+					// A connect that succeeds after the race is over isn't needed.
+					if (!done) {
+						results.add(socket);
+						return;
+					}
+				}
+				socket.close();
+			} catch (Exception exc) {
+				results.add(exc);
+			}
+		}
+		
+		/**
+		 * Stop the race, cancelling the connects that are still running.
+		 * 
+		 * @param winner The socket that won, if any
+		 */
+		private synchronized void finish(Socket winner) {
+			if (done) return;
+			done = true;
+			for (Socket socket : sockets) {
+				if (socket == winner) continue;
+				try {
+					socket.close();
+				} catch (Exception exc) {}
+			}
+		}
+		
+		Socket run(long timeout) throws Exception {
+			long started = System.currentTimeMillis();
+			int next = 0;
+			int failed = 0;
+			start(addresses.get(next++), timeout);
+			try {
+				for (;;) {
+					long remaining = (timeout == 0) ? Long.MAX_VALUE : 
+						timeout - (System.currentTimeMillis() - started);
+					if (remaining <= 0) return null;
+					long wait = (next < addresses.size()) ? Math.min(stagger, remaining) : remaining;
+					Object result = results.poll(wait, TimeUnit.MILLISECONDS);
+					if (result instanceof Socket) {
+						finish((Socket) result);
+						return (Socket) result;
+					}
+					if (result instanceof Exception) {
+						if (++failed >= addresses.size()) throw (Exception) result;
+					}
+					if (next < addresses.size()) {
+						start(addresses.get(next++), timeout);
+					}
+				}
+			} finally {
+				finish(null);
+			}
+		}
+	}
 }
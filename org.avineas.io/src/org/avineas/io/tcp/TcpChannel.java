@@ -15,10 +15,8 @@
  */
 package org.avineas.io.tcp;
 
-import javax.annotation.PreDestroy;
-
-import org.avineas.io.Channel;
 import org.avineas.io.ChannelProvider;
+import org.avineas.io.helper.ReconnectingChannel;
 
 /**
  * Base channel for TCP connections. Is a wrapper for handling incoming and outgoing 
@@ -27,78 +25,8 @@ import org.avineas.io.ChannelProvider;
  * 
  * @author Arie van Wijngaarden
  */
-class TcpChannel implements Channel {
-	private Channel currentChannel;
-	private ChannelProvider provider;
-	
+class TcpChannel extends ReconnectingChannel {
 	TcpChannel(ChannelProvider provider) {
-		this.provider = provider;
-	}
-	
-	/**
-	 * Wait for a socket to become available.
-	 * 
-	 * @param timeout The timeout, in ms. to wait for a socket
-	 * @return The socket, or null if no socket could be opened
-	 */
-	private Channel waitForChannel(long timeout) {
-		synchronized (this) {
-			if (this.currentChannel != null) 
-				return this.currentChannel;
-		}
-		try {
-			Channel cur = provider.getChannel(timeout);
-			synchronized (this) {
-				this.currentChannel = cur;
-				return cur;
-			}
-		} catch (Exception exc) {
-		}
-		return null;
-	}
-	
-	@Override
-	public int read(byte[] data, int offset, long timeout) {
-		Channel channel = waitForChannel(timeout);
-		if (channel == null) return 0;
-		int size = channel.read(data, offset, timeout);
-		if (size < 0) {
-			_close();
-		}
-		return size;
-	}
-
-	@Override
-	public int write(byte[] data, int length) {
-		Channel channel = waitForChannel(Long.MAX_VALUE);
-		if (channel == null) return -1;
-		int size = channel.write(data, length);
-		if (size < 0) {
-			_close();
-		}
-		return size;
-	}
-	
-	private synchronized void _close() {
-		if (this.currentChannel != null) {
-			try {
-				this.currentChannel.close();
-			} catch (Exception exc) {}
-		}
-		this.currentChannel = null;
-	}
-	
-	@Override
-	@PreDestroy
-	public void close() {
-		_close();
-		try {
-			provider.close();
-		} catch (Exception exc) {}
-	}
-	
-	@Override
-	public String toString() {
-		return provider.toString();
+		super(provider);
 	}
-}
\ No newline at end of file
+}
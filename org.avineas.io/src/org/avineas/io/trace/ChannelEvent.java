@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.trace;
+
+/**
+ * Event of an IO operation on a channel. Carries the channel, the kind of operation, how long
+ * it took and how it ended.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ChannelEvent {
+	/**
+	 * The kind of operations traced.
+	 */
+	public enum Type {
+		READ, WRITE, CONNECT, DISCONNECT, TIMEOUT
+	}
+
+	private Type type;
+	private String channel;
+	private int bytes;
+	private long started;
+	private long duration;
+	private boolean success;
+
+	/**
+	 * Construct an event.
+	 *
+	 * @param type The type of operation
+	 * @param channel The name of the channel
+	 * @param bytes The number of bytes read or written, if applicable
+	 * @param started The time the operation started, in ms. since the epoch
+	 * @param duration The duration of the operation, in ns.
+	 * @param success Whether the operation succeeded
+	 */
+	public ChannelEvent(Type type, String channel, int bytes, long started, long duration,
+			boolean success) {
+		this.type = type;
+		this.channel = channel;
+		this.bytes = bytes;
+		this.started = started;
+		this.duration = duration;
+		this.success = success;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public int getBytes() {
+		return bytes;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + channel + ": " + bytes + " bytes, " + (duration / 1000L) + " us, " +
+			(success ? "ok" : "failed");
+	}
+}
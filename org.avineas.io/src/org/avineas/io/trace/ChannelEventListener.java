@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.trace;
+
+/**
+ * Listener to channel events.
+ *
+ * @author Arie van Wijngaarden
+ */
+public interface ChannelEventListener {
+	/**
+	 * Called when an operation that took at least the threshold of the listener has finished.
+	 * Called on the thread doing the operation, so this method must return quickly.
+	 *
+	 * @param event The event
+	 */
+	public void event(ChannelEvent event);
+}
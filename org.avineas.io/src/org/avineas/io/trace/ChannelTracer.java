@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.trace;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of channel event listeners and the entry point for channels to report their
+ * operations. If no listeners are registered, tracing costs a volatile read per operation.
+ * <br/>
+ * Channels call {@link #begin()} before an operation and one of the end methods after it.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class ChannelTracer {
+	private static CopyOnWriteArrayList<Registration> listeners =
+		new CopyOnWriteArrayList<Registration>();
+	private static volatile boolean enabled;
+
+	private ChannelTracer() {
+	}
+
+	/**
+	 * Register a listener for events.
+	 *
+	 * @param listener The listener
+	 * @param threshold The minimum duration, in ns., of operations to pass to the listener.
+	 * 0 passes all operations
+	 */
+	public static synchronized void addListener(ChannelEventListener listener, long threshold) {
+		listeners.add(new Registration(listener, threshold));
+		enabled = true;
+	}
+
+	/**
+	 * Remove a registered listener.
+	 *
+	 * @param listener The listener to remove
+	 */
+	public static synchronized void removeListener(ChannelEventListener listener) {
+		for (Registration registration : listeners) {
+			if (registration.listener == listener) {
+				listeners.remove(registration);
+			}
+		}
+		enabled = !listeners.isEmpty();
+	}
+
+	/**
+	 * Mark the start of an operation.
+	 *
+	 * @return The start time to pass to the end method, 0 if tracing is disabled
+	 */
+	public static long begin() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Mark the end of an operation.
+	 *
+	 * @param type The type of operation
+	 * @param channel The channel name
+	 * @param begin The value returned by {@link #begin()}
+	 * @param bytes The number of bytes involved
+	 * @param success Whether the operation succeeded
+	 */
+	public static void end(ChannelEvent.Type type, Object channel, long begin, int bytes,
+			boolean success) {
+		if (begin == 0 || !enabled) return;
+		long duration = System.nanoTime() - begin;
+		ChannelEvent event = null;
+		for (Registration registration : listeners) {
+			if (duration < registration.threshold) continue;
+			if (event == null) {
+				event = new ChannelEvent(type, String.valueOf(channel), bytes,
+					System.currentTimeMillis() - duration / 1000000L, duration, success);
+			}
+			try {
+				registration.listener.event(event);
+			} catch (Exception exc) {}
+		}
+	}
+
+	/**
+	 * Mark the end of a read. The result determines whether it is a read, a timeout or a
+	 * failed read.
+	 *
+	 * @param channel The channel name
+	 * @param begin The value returned by {@link #begin()}
+	 * @param size The result of the read
+	 */
+	public static void endRead(Object channel, long begin, int size) {
+		if (begin == 0) return;
+		if (size == 0) end(ChannelEvent.Type.TIMEOUT, channel, begin, 0, true);
+		else end(ChannelEvent.Type.READ, channel, begin, Math.max(0, size), size > 0);
+	}
+
+	/**
+	 * Mark the end of a write.
+	 *
+	 * @param channel The channel name
+	 * @param begin The value returned by {@link #begin()}
+	 * @param length The length of the data written
+	 * @param result The result of the write
+	 */
+	public static void endWrite(Object channel, long begin, int length, int result) {
+		if (begin == 0) return;
+		end(ChannelEvent.Type.WRITE, channel, begin, length, result >= 0);
+	}
+
+	private static class Registration {
+		ChannelEventListener listener;
+		long threshold;
+
+		Registration(ChannelEventListener listener, long threshold) {
+			this.listener = listener;
+			this.threshold = threshold;
+		}
+	}
+}
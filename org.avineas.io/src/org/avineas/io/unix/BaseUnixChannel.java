@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import javax.annotation.PreDestroy;
+
+import org.avineas.io.Channel;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * Base channel for unix domain socket connections. Is a wrapper for reading and writing
+ * a connected socket. Since unix domain sockets don't have a socket adapter with timeouts,
+ * the socket is used in non-blocking mode and waiting is done via selectors, optionally after
+ * polling the socket according to a wait strategy.
+ *
+ * @author Arie van Wijngaarden
+ */
+class BaseUnixChannel implements Channel {
+	private SocketChannel socket;
+	private Selector readSelector;
+	private Selector writeSelector;
+	private WaitStrategy strategy;
+	private volatile long writeTimeout = 5000;
+
+	BaseUnixChannel(SocketChannel socket, WaitStrategy strategy) throws IOException {
+		this.socket = socket;
+		this.strategy = strategy;
+		try {
+			socket.configureBlocking(false);
+			readSelector = Selector.open();
+			socket.register(readSelector, SelectionKey.OP_READ);
+			writeSelector = Selector.open();
+			socket.register(writeSelector, SelectionKey.OP_WRITE);
+		} catch (IOException exc) {
+			close();
+			throw exc;
+		}
+	}
+
+	@Override
+	public int read(byte[] data, int offset, long timeout) {
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+		int size;
+		try {
+			synchronized (readSelector) {
+				size = socket.read(buffer);
+				long started = System.currentTimeMillis();
+				long deadline = WaitStrategy.getDeadline(timeout);
+				for (int cnt = 0; size == 0 && timeout > 0 && strategy.idle(cnt, deadline); cnt++) {
+					size = socket.read(buffer);
+				}
+				if (size == 0 && timeout > 0) {
+					long remaining = timeout - (System.currentTimeMillis() - started);
+					if (remaining <= 0) return 0;
+					readSelector.select(remaining);
+					readSelector.selectedKeys().clear();
+					size = socket.read(buffer);
+				}
+			}
+		} catch (Exception exc) {
+			size = -1;
+		}
+		if (size < 0) {
+			close();
+		}
+		return size;
+	}
+
+	/**
+	 * Set the time a write may wait for the peer to take data before it fails.
+	 *
+	 * @param writeTimeout The timeout in ms
+	 */
+	void setWriteTimeout(long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	@Override
+	public int write(byte[] data, int length) {
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		try {
+			synchronized (writeSelector) {
+				long started = System.currentTimeMillis();
+				while (buffer.hasRemaining()) {
+					if (socket.write(buffer) == 0) {
+						// A peer that doesn't take its data fails the write, the connection
+						// can't be used anymore since part of the data may have been written.
+						long remaining = writeTimeout - (System.currentTimeMillis() - started);
+						if (remaining <= 0) throw new SocketTimeoutException("write timed out");
+						writeSelector.select(remaining);
+						writeSelector.selectedKeys().clear();
+					}
+				}
+			}
+		} catch (Exception exc) {
+			close();
+			return -1;
+		}
+		return length;
+	}
+
+	@Override
+	@PreDestroy
+	public void close() {
+		try {
+			socket.close();
+		} catch (Exception exc) {}
+		try {
+			if (readSelector != null) readSelector.close();
+			if (writeSelector != null) writeSelector.close();
+		} catch (Exception exc) {}
+	}
+}
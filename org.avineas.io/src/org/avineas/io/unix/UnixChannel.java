@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+import org.avineas.io.helper.ReconnectingChannel;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * Base channel for unix domain socket connections. Is a wrapper for handling incoming and
+ * outgoing connections. The channel tries to maintain a permanent connection, meaning that
+ * it will open a socket again when it is somehow closed.
+ *
+ * @author Arie van Wijngaarden
+ */
+class UnixChannel extends ReconnectingChannel {
+	private UnixChannelProvider provider;
+
+	UnixChannel(UnixChannelProvider provider) {
+		super(provider);
+		this.provider = provider;
+	}
+
+	/**
+	 * Set the way of waiting for data. Polling the socket instead of blocking on it saves
+	 * the wake up latency at the cost of processor time.
+	 *
+	 * @param strategy The strategy, defaults to {@link WaitStrategy#BLOCKING}. Is used for
+	 * connections made after the call
+	 */
+	public void setWaitStrategy(WaitStrategy strategy) {
+		provider.setWaitStrategy(strategy);
+	}
+
+	/**
+	 * Set the time a write may wait for the peer to take its data. When it passes, the write
+	 * fails and the connection is closed.
+	 *
+	 * @param writeTimeout The timeout in ms, defaults to 5000. Is used for connections made
+	 * after the call
+	 */
+	public void setWriteTimeout(long writeTimeout) {
+		provider.setWriteTimeout(writeTimeout);
+	}
+}
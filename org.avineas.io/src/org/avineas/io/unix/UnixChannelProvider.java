@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+import java.nio.channels.SocketChannel;
+
+import org.avineas.io.Channel;
+import org.avineas.io.ChannelProvider;
+import org.avineas.io.helper.WaitStrategy;
+
+/**
+ * Base provider for unix domain socket connections. Is a base class for implementing simple
+ * variants for server and client sockets.
+ *
+ * @author Arie van Wijngaarden
+ */
+abstract class UnixChannelProvider implements ChannelProvider {
+	private volatile WaitStrategy strategy = WaitStrategy.BLOCKING;
+	private volatile long writeTimeout = 5000;
+
+	/**
+	 * Set the way of waiting for data on the connections made after this call.
+	 *
+	 * @param strategy The strategy, defaults to {@link WaitStrategy#BLOCKING}
+	 */
+	void setWaitStrategy(WaitStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Set the write timeout of the connections made after this call.
+	 *
+	 * @param writeTimeout The timeout in ms, defaults to 5000
+	 */
+	void setWriteTimeout(long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Method subclasses must implement to provide a connected socket to the channel. The time
+	 * must be limited to the time passed.
+	 *
+	 * @return The socket, if found within the timeout. Otherwise null
+	 * @throws Exception In case of errors
+	 */
+	protected abstract SocketChannel connect(long timeout) throws Exception;
+
+	@Override
+	public Channel getChannel(long timeout) {
+		SocketChannel socket = null;
+		try {
+			socket = connect(timeout);
+			if (socket == null) return null;
+			BaseUnixChannel channel = new BaseUnixChannel(socket, strategy);
+			channel.setWriteTimeout(writeTimeout);
+			return channel;
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		} catch (Exception exc) {
+		}
+		return null;
+	}
+}
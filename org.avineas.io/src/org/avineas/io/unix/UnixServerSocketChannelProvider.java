@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Channel provider for incoming unix domain socket connections. Provides channels for incoming
+ * connections and can therefore be used to separately handle connections to different parties.
+ * A socket file that is left behind by an earlier run is removed, unless a server is still
+ * listening on it. Other kinds of files are never removed. The socket file is removed again when
+ * the provider is closed.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class UnixServerSocketChannelProvider extends UnixChannelProvider {
+	private String path;
+	private ServerSocketChannel socket;
+	private Selector selector;
+	private boolean created;
+
+	/**
+	 * Listen to connections on a socket file.
+	 *
+	 * @param path The path of the socket file
+	 * @throws IOException In case of errors or if unix domain sockets are not supported
+	 */
+	public UnixServerSocketChannelProvider(String path) throws IOException {
+		this.path = path;
+		removeStale();
+		socket = UnixSockets.openServerSocket(UnixSockets.getAddress(path));
+		created = true;
+		try {
+			socket.configureBlocking(false);
+			selector = Selector.open();
+			socket.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException exc) {
+			close();
+			throw exc;
+		}
+	}
+
+	/**
+	 * Remove a socket file left behind by an earlier run. If another server still accepts
+	 * connections on it, it is left alone and an exception is thrown.
+	 */
+	private void removeStale() throws IOException {
+		if (!UnixSockets.isSocket(path)) return;
+		boolean alive;
+		SocketChannel probe = UnixSockets.openSocket();
+		try {
+			alive = probe.connect(UnixSockets.getAddress(path));
+		} catch (IOException exc) {
+			alive = false;
+		} finally {
+			probe.close();
+		}
+		if (alive) throw new IOException(path + " is in use by another server");
+		new File(path).delete();
+	}
+
+	@Override
+	protected SocketChannel connect(long timeout) throws Exception {
+		synchronized (selector) {
+			SocketChannel accepted = socket.accept();
+			if (accepted == null && timeout > 0) {
+				selector.select(timeout);
+				selector.selectedKeys().clear();
+				accepted = socket.accept();
+			}
+			return accepted;
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (Exception exc) {}
+		try {
+			if (selector != null) selector.close();
+		} catch (Exception exc) {}
+		if (created && UnixSockets.isSocket(path)) {
+			new File(path).delete();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Unix server socket " + path;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+/**
+ * Channel for outgoing unix domain socket connections. This class automatically reconnects
+ * to the socket file if somehow the connection is lost. As such it is a kind of permanent
+ * virtual circuit to an other local party.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class UnixSocketChannel extends UnixChannel {
+	/**
+	 * Create a channel to a socket file.
+	 *
+	 * @param path The path of the socket file to connect to
+	 */
+	public UnixSocketChannel(String path) {
+		super(new UnixSocketChannelProvider(path));
+	}
+}
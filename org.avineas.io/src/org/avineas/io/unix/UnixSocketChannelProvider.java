@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Channel provider for outgoing unix domain socket connections.
+ *
+ * @author Arie van Wijngaarden
+ */
+public class UnixSocketChannelProvider extends UnixChannelProvider {
+	private String path;
+
+	/**
+	 * Construct a provider for connections to a socket file.
+	 *
+	 * @param path The path of the socket file to connect to
+	 */
+	public UnixSocketChannelProvider(String path) {
+		this.path = path;
+	}
+
+	@Override
+	protected SocketChannel connect(long timeout) throws Exception {
+		SocketAddress address = UnixSockets.getAddress(path);
+		SocketChannel socket = UnixSockets.openSocket();
+		try {
+			socket.configureBlocking(false);
+			if (!socket.connect(address) && !finishConnect(socket, timeout)) {
+				socket.close();
+				return null;
+			}
+		} catch (Exception exc) {
+			socket.close();
+			throw exc;
+		}
+		return socket;
+	}
+
+	/**
+	 * Wait for a pending connect, for example when the backlog of the server is full.
+	 *
+	 * @return True if connected, false if the timeout passed
+	 */
+	private static boolean finishConnect(SocketChannel socket, long timeout) throws IOException {
+		Selector selector = Selector.open();
+		try {
+			socket.register(selector, SelectionKey.OP_CONNECT);
+			long started = System.currentTimeMillis();
+			while (!socket.finishConnect()) {
+				long remaining = timeout - (System.currentTimeMillis() - started);
+				if (remaining <= 0) return false;
+				selector.select(remaining);
+				selector.selectedKeys().clear();
+			}
+			return true;
+		} finally {
+			selector.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Unix socket " + path;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.io.unix;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Access to unix domain sockets. These are only available from Java 16 onwards, while this
+ * bundle runs on older environments as well. The needed methods are therefore looked up
+ * dynamically and an IO exception is thrown if they are not present.
+ *
+ * @author Arie van Wijngaarden
+ */
+class UnixSockets {
+	private static final int S_IFMT = 0170000;
+	private static final int S_IFSOCK = 0140000;
+	private static Method addressOf;
+	private static Object family;
+	private static Method openSocket;
+	private static Method openServerSocket;
+	private static Method bind;
+	private static Method getPath;
+	private static Method getAttribute;
+	private static Object noOptions;
+
+	static {
+		try {
+			addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			Class<?> familyClass = Class.forName("java.net.ProtocolFamily");
+			family = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+			openSocket = SocketChannel.class.getMethod("open", familyClass);
+			openServerSocket = ServerSocketChannel.class.getMethod("open", familyClass);
+			bind = ServerSocketChannel.class.getMethod("bind", SocketAddress.class);
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> optionClass = Class.forName("java.nio.file.LinkOption");
+			getPath = Class.forName("java.nio.file.Paths").getMethod("get", String.class, String[].class);
+			noOptions = Array.newInstance(optionClass, 0);
+			getAttribute = Class.forName("java.nio.file.Files").getMethod("getAttribute", pathClass,
+				String.class, noOptions.getClass());
+		} catch (Exception exc) {
+			addressOf = null;
+		}
+	}
+
+	private UnixSockets() {
+	}
+
+	/**
+	 * Check whether unix domain sockets are supported by this VM.
+	 *
+	 * @return True if supported
+	 */
+	static boolean isSupported() {
+		return addressOf != null;
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) throws IOException {
+		if (!isSupported()) {
+			throw new IOException("unix domain sockets are not supported by this VM");
+		}
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException exc) {
+			if (exc.getCause() instanceof IOException) throw (IOException) exc.getCause();
+			throw new IOException(exc.getCause().toString());
+		} catch (Exception exc) {
+			throw new IOException(exc.toString());
+		}
+	}
+
+	/**
+	 * Get the socket address of a path.
+	 *
+	 * @param path The path of the socket file
+	 * @return The address
+	 * @throws IOException If not supported
+	 */
+	static SocketAddress getAddress(String path) throws IOException {
+		return (SocketAddress) invoke(addressOf, null, path);
+	}
+
+	/**
+	 * Open a unix domain socket channel.
+	 *
+	 * @return The opened (not connected) channel
+	 * @throws IOException In case of errors
+	 */
+	static SocketChannel openSocket() throws IOException {
+		return (SocketChannel) invoke(openSocket, null, family);
+	}
+
+	/**
+	 * Open a unix domain server socket channel and bind it to a path.
+	 *
+	 * @param address The address to bind to
+	 * @return The bound server channel
+	 * @throws IOException In case of errors
+	 */
+	static ServerSocketChannel openServerSocket(SocketAddress address) throws IOException {
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(openServerSocket, null, family);
+		try {
+			invoke(bind, channel, address);
+		} catch (IOException exc) {
+			channel.close();
+			throw exc;
+		}
+		return channel;
+	}
+
+	/**
+	 * Check whether a path is a socket file. Links are not followed.
+	 *
+	 * @param path The path to check
+	 * @return True if the path exists and is a socket, false otherwise
+	 */
+	static boolean isSocket(String path) {
+		try {
+			Object file = invoke(getPath, null, path, new String[0]);
+			Object mode = invoke(getAttribute, null, file, "unix:mode", noOptions);
+			return (((Integer) mode).intValue() & S_IFMT) == S_IFSOCK;
+		} catch (Exception exc) {
+			return false;
+		}
+	}
+}